@@ -0,0 +1,190 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.options.Configurable;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.Nls;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+
+// Settings | Tools | AutoSave 设置页面
+public class AutoSaveConfigurable implements Configurable {
+    private JComboBox<String> codecBox;
+    private JSpinner levelSpinner;
+    private JSpinner deltaSpinner;
+    private JCheckBox chunkBox;
+    private JCheckBox gitIgnoreBox;
+    private JTextField patternsField;
+    private JTextField extensionsField;
+    private JSpinner maxSizeSpinner;
+    private JCheckBox retentionBox;
+    private JSpinner keepAllSpinner;
+    private JSpinner keepHourlySpinner;
+    private JSpinner keepDailySpinner;
+    private JSpinner quotaSpinner;
+    private JLabel compressionLabel;
+
+    @Override
+    public @Nls String getDisplayName() {
+        return "AutoSave";
+    }
+
+    @Override
+    public @Nullable JComponent createComponent() {
+        codecBox = new JComboBox<>(ObjectCodec.names());
+        levelSpinner = new JSpinner(new SpinnerNumberModel(6, 1, 9, 1));
+        deltaSpinner = new JSpinner(new SpinnerNumberModel(10, 0, AutoSaveSettings.MAX_DELTA_CHAIN_DEPTH, 1));
+        chunkBox = new JCheckBox("Split files larger than 1 MB into content-defined chunks");
+        gitIgnoreBox = new JCheckBox("Skip paths matched by .gitignore files");
+        patternsField = new JTextField(40);
+        extensionsField = new JTextField(40);
+        maxSizeSpinner = new JSpinner(new SpinnerNumberModel(50 * 1024, 0, Integer.MAX_VALUE, 1024));
+        retentionBox = new JCheckBox("Thin out old automatic versions (manual and renamed versions are always kept)");
+        keepAllSpinner = new JSpinner(new SpinnerNumberModel(60, 0, Integer.MAX_VALUE, 10));
+        keepHourlySpinner = new JSpinner(new SpinnerNumberModel(24, 0, Integer.MAX_VALUE, 1));
+        keepDailySpinner = new JSpinner(new SpinnerNumberModel(30, 0, Integer.MAX_VALUE, 1));
+        quotaSpinner = new JSpinner(new SpinnerNumberModel(2048, 0, Integer.MAX_VALUE, 256));
+        compressionLabel = new JLabel();
+
+        JPanel panel = new JPanel(new GridBagLayout());
+        int row = 0;
+        addRow(panel, row++, new JLabel("Object compression:"), codecBox);
+        addRow(panel, row++, new JLabel("Compression level (1 fastest, 9 smallest):"), levelSpinner);
+        addRow(panel, row++, new JLabel("Max delta chain length (0 stores full files):"), deltaSpinner);
+        addRow(panel, row++, chunkBox, null);
+        addRow(panel, row++, gitIgnoreBox, null);
+        addRow(panel, row++, new JLabel("Ignored patterns (gitignore syntax, separated by ;):"), patternsField);
+        addRow(panel, row++, new JLabel("Ignored extensions (separated by ;):"), extensionsField);
+        addRow(panel, row++, new JLabel("Max file size in KB (0 for no limit):"), maxSizeSpinner);
+        addRow(panel, row++, retentionBox, null);
+        addRow(panel, row++, new JLabel("Keep every version for (minutes):"), keepAllSpinner);
+        addRow(panel, row++, new JLabel("Then keep one version per hour for (hours):"), keepHourlySpinner);
+        addRow(panel, row++, new JLabel("Then keep one version per day for (days):"), keepDailySpinner);
+        addRow(panel, row++, new JLabel("Storage quota per project in MB (0 for no limit):"), quotaSpinner);
+        addRow(panel, row++, compressionLabel, null);
+
+        // 把内容推到左上角
+        GridBagConstraints c = new GridBagConstraints();
+        c.gridx = 2;
+        c.gridy = row;
+        c.weightx = 1;
+        c.weighty = 1;
+        panel.add(new JPanel(), c);
+
+        reset();
+        return panel;
+    }
+
+    // 一行设置：左边是标签，右边是输入组件；没有输入组件时左边的组件占满一行
+    private static void addRow(JPanel panel, int row, JComponent label, JComponent input) {
+        GridBagConstraints c = new GridBagConstraints();
+        c.anchor = GridBagConstraints.WEST;
+        c.insets = new Insets(4, 4, 4, 4);
+        c.gridx = 0;
+        c.gridy = row;
+        c.gridwidth = input == null ? 2 : 1;
+        panel.add(label, c);
+        if (input == null) return;
+        c.gridx = 1;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        panel.add(input, c);
+    }
+
+    @Override
+    public boolean isModified() {
+        AutoSaveSettings.State state = AutoSaveSettings.getInstance().getState();
+        return !state.compressionCodec.equals(codecBox.getSelectedItem())
+                || state.compressionLevel != (Integer) levelSpinner.getValue()
+                || state.maxDeltaChainDepth != (Integer) deltaSpinner.getValue()
+                || state.chunkLargeFiles != chunkBox.isSelected()
+                || isFilterModified(state)
+                || state.retentionEnabled != retentionBox.isSelected()
+                || state.keepAllMinutes != (Integer) keepAllSpinner.getValue()
+                || state.keepHourlyHours != (Integer) keepHourlySpinner.getValue()
+                || state.keepDailyDays != (Integer) keepDailySpinner.getValue()
+                || state.storageQuotaMb != (Integer) quotaSpinner.getValue();
+    }
+
+    private boolean isFilterModified(AutoSaveSettings.State state) {
+        return state.useGitIgnore != gitIgnoreBox.isSelected()
+                || !state.ignoredPatterns.equals(patternsField.getText())
+                || !state.ignoredExtensions.equals(extensionsField.getText())
+                || state.maxFileSizeKb != (Integer) maxSizeSpinner.getValue();
+    }
+
+    @Override
+    public void apply() {
+        AutoSaveSettings.State state = AutoSaveSettings.getInstance().getState();
+        boolean filterModified = isFilterModified(state);
+        state.compressionCodec = (String) codecBox.getSelectedItem();
+        state.compressionLevel = (Integer) levelSpinner.getValue();
+        state.maxDeltaChainDepth = (Integer) deltaSpinner.getValue();
+        state.chunkLargeFiles = chunkBox.isSelected();
+        state.useGitIgnore = gitIgnoreBox.isSelected();
+        state.ignoredPatterns = patternsField.getText();
+        state.ignoredExtensions = extensionsField.getText();
+        state.maxFileSizeKb = (Integer) maxSizeSpinner.getValue();
+        state.retentionEnabled = retentionBox.isSelected();
+        state.keepAllMinutes = (Integer) keepAllSpinner.getValue();
+        state.keepHourlyHours = (Integer) keepHourlySpinner.getValue();
+        state.keepDailyDays = (Integer) keepDailySpinner.getValue();
+        state.storageQuotaMb = (Integer) quotaSpinner.getValue();
+
+        // 忽略规则变化后，没有变化的目录也可能包含新加入或新排除的文件，下次保存需要完整遍历
+        if (filterModified) {
+            for (Project project : ProjectManager.getInstance().getOpenProjects())
+                project.getService(DirtyPathTracker.class).invalidate();
+        }
+    }
+
+    @Override
+    public void reset() {
+        AutoSaveSettings settings = AutoSaveSettings.getInstance();
+        AutoSaveSettings.State state = settings.getState();
+        codecBox.setSelectedItem(settings.getCodec().name);
+        levelSpinner.setValue(settings.getCompressionLevel());
+        deltaSpinner.setValue(settings.getMaxDeltaChainDepth());
+        chunkBox.setSelected(settings.isChunkLargeFiles());
+        gitIgnoreBox.setSelected(state.useGitIgnore);
+        patternsField.setText(state.ignoredPatterns);
+        extensionsField.setText(state.ignoredExtensions);
+        maxSizeSpinner.setValue(state.maxFileSizeKb);
+        retentionBox.setSelected(state.retentionEnabled);
+        keepAllSpinner.setValue(state.keepAllMinutes);
+        keepHourlySpinner.setValue(state.keepHourlyHours);
+        keepDailySpinner.setValue(state.keepDailyDays);
+        quotaSpinner.setValue(state.storageQuotaMb);
+        compressionLabel.setText(compressionSummary());
+    }
+
+    // 每个打开的项目在本次运行中写入的object的压缩率
+    private static String compressionSummary() {
+        StringBuilder text = new StringBuilder("<html>Since the IDE started:");
+        for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+            String summary = project.getService(PackStore.class).getCompressionSummary();
+            text.append("<br>").append(StringUtil.escapeXmlEntities(project.getName())).append(": ").append(summary);
+        }
+        return text.append("</html>").toString();
+    }
+
+    @Override
+    public void disposeUIResources() {
+        codecBox = null;
+        levelSpinner = null;
+        deltaSpinner = null;
+        chunkBox = null;
+        gitIgnoreBox = null;
+        patternsField = null;
+        extensionsField = null;
+        maxSizeSpinner = null;
+        retentionBox = null;
+        keepAllSpinner = null;
+        keepHourlySpinner = null;
+        keepDailySpinner = null;
+        quotaSpinner = null;
+        compressionLabel = null;
+    }
+}
@@ -1,21 +1,38 @@
 package com.github.tr303.autosave;
 
-import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AutoSaveData {
+    private static final int STREAM_THRESHOLD = 1 << 20; // 超过1MB的文件流式保存或切块保存
+    private static final byte[] CHUNK_LIST_TYPE = "LST@".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DIR_TYPE = "DIR@".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CHUNK_HEADER = "CHK@\0".getBytes(StandardCharsets.UTF_8); // 块object不带名字，可以被任何文件共享
+    private static final int BUFFER_SIZE = 64 << 10;
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
     private final Project project;
     private final Logger log = Logger.getInstance(AutoSaveData.class);
 
@@ -23,217 +40,308 @@ public class AutoSaveData {
         this.project = project;
     }
 
-    // 得到VERSIONS文件的内容
-    public String getVersionsFileContent() {
-        String autosaveDirPath = project.getBasePath() + "/.autosave";
-        VirtualFile autosaveDir = VfsUtil.findFileByIoFile(new File(autosaveDirPath), true);
+    // 一次保存或删除结束后，让VFS统一刷新一次.autosave目录
+    void refreshAutosaveDir() {
+        VfsUtil.markDirtyAndRefresh(true, true, true, new File(project.getBasePath(), ".autosave"));
+    }
 
-        if (autosaveDir != null) {
-            VirtualFile versionsFile = autosaveDir.findChild("VERSIONS");
-            if (versionsFile != null) try {
-                return VfsUtil.loadText(versionsFile);
-            } catch (IOException e) {
-                log.error(e);
+    // 流式保存一个文件object，返回其哈希：内容按字节边读边计算哈希，不经过字符集解码
+    // 小文件一次读入恰好大小的数组，大文件边压缩边写入临时文件再整体拷贝进pack，内存占用与文件大小无关
+    // baseHash是同一路径上一次保存的object，不为null时小文件保存为相对它的差分
+    String saveFileObject(VirtualFile file, String baseHash) throws IOException {
+        byte[] header = objectHeader(file.getName(), false);
+        long length = file.getLength();
+
+        if (length <= STREAM_THRESHOLD) {
+            byte[] content = new byte[header.length + (int) length];
+            System.arraycopy(header, 0, content, 0, header.length);
+            try (InputStream in = file.getInputStream()) {
+                int read = in.readNBytes(content, header.length, (int) length);
+                if (read == length && in.read() < 0) {
+                    String hash = sha256(content);
+                    if (baseHash != null) getPackStore().appendDelta(hash, content, baseHash);
+                    else getPackStore().append(hash, content);
+                    return hash;
+                }
             }
+            // 读取期间文件大小发生了变化，改为流式读取
         }
 
-        return null;
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        digest.update(header);
+        AutoSaveSettings settings = AutoSaveSettings.getInstance();
+        Path spool = getPackStore().createSpoolFile();
+        try {
+            long rawLength = header.length;
+            try (InputStream in = file.getInputStream();
+                 OutputStream spoolOut = Files.newOutputStream(spool);
+                 OutputStream out = settings.getCodec().encodePayloadStream(spoolOut, settings.getCompressionLevel())) {
+                out.write(header);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    rawLength += read;
+                }
+            }
+            String hash = PackStore.bytesToHex(digest.digest());
+            getPackStore().appendFrom(hash, spool, rawLength);
+            return hash;
+        } finally {
+            Files.deleteIfExists(spool);
+        }
     }
 
-    public Boolean saveVersionFileContent(String content) {
-        String autosaveDirPath = project.getBasePath() + "/.autosave";
-        VirtualFile autosaveDir = VfsUtil.findFileByIoFile(new File(autosaveDirPath), true);
-
-        if (autosaveDir != null) {
-            VirtualFile versionsFile = autosaveDir.findChild("VERSIONS");
-            if (versionsFile != null) {
-                AtomicBoolean success = new AtomicBoolean(false);
-                WriteCommandAction.runWriteCommandAction(project, () -> {
-                    try {
-                        versionsFile.setBinaryContent(content.getBytes(StandardCharsets.UTF_8));
-                        success.set(true); // 如果操作成功，设置为true
-                    } catch (IOException e) {
-                        log.error(e);
-                        success.set(false); // 如果操作失败，设置为false
-                    }
-                });
-                return success.get();
-            }
+    // 得到某个哈希值对应object的原始内容String，用于目录object和文本预览；优先从内存缓存中读取
+    String getObjectContentByHash(String hash) {
+        ObjectCache cache = getObjectCache();
+        String cached = cache.get(hash);
+        if (cached != null) return cached;
+        byte[] content = getPackStore().read(hash);
+        if (content == null) return null;
+        String decoded = new String(content, StandardCharsets.UTF_8);
+        cache.put(hash, decoded);
+        return decoded;
+    }
+
+    // 以流的方式读取文件object中的内容部分（跳过FIL@名字\0头部），切块保存的文件依次读取每一块
+    InputStream openFileContent(String hash) throws IOException {
+        InputStream in = getPackStore().openStream(hash);
+        if (in == null) throw new FileNotFoundException("Missing object " + hash);
+        byte[] type = new byte[4];
+        int b = 0;
+        for (int i = 0; (b = in.read()) > 0; i++)
+            if (i < type.length) type[i] = (byte) b;
+        if (b < 0) {
+            in.close();
+            throw new IOException("Corrupted object " + hash);
         }
+        if (!Arrays.equals(type, CHUNK_LIST_TYPE)) return in;
 
-        return null;
+        try (in) {
+            return new ChunkedInputStream(parseChunkList(new String(in.readAllBytes(), StandardCharsets.UTF_8)));
+        }
     }
 
-    public String getFileContent(VirtualFile file) {
-        try {
-            return VfsUtil.loadText(file);
+    // 文件object的全部内容，切块保存的文件会被拼接起来
+    String getFileContentByHash(String hash) {
+        try (InputStream in = openFileContent(hash)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
         } catch (IOException e) {
             log.error(e);
             return null;
         }
     }
 
-    // 得到某个哈希值对应object的原始内容String
-    String getObjectContentByHash(String hash) {
-        String objectDir = project.getBasePath() + "/.autosave/objects/" + hash.substring(0, 2);
-        String objectFileName = hash.substring(2);
-        String objectFullPath = objectDir + '/' + objectFileName;
+    // 是否应当切块保存：文件较大时只有修改过的块需要写入
+    boolean shouldChunk(VirtualFile file) {
+        return file.getLength() > STREAM_THRESHOLD && AutoSaveSettings.getInstance().isChunkLargeFiles();
+    }
+
+    // 切块保存的文件：列表object依次记录每一块的哈希和长度
+    static class ChunkedFile {
+        final String hash;
+        final byte[] content; // 列表object，由调用方决定是否写入
+        final ArrayList<String> chunkHashes;
 
-        VirtualFile objectFile = VfsUtil.findFileByIoFile(new File(objectFullPath), true);
-        if (objectFile != null) try {
-            return VfsUtil.loadText(objectFile);
+        ChunkedFile(String hash, byte[] content, ArrayList<String> chunkHashes) {
+            this.hash = hash;
+            this.content = content;
+            this.chunkHashes = chunkHashes;
+        }
+    }
+
+    // 按内容定义的边界把文件切块，每一块作为单独的object保存，已存在的块不会重复写入
+    // 文件只顺序读取一遍，内存占用不超过两个最大块
+    ChunkedFile saveFileChunks(VirtualFile file) throws IOException {
+        StringBuilder list = new StringBuilder();
+        ArrayList<String> chunkHashes = new ArrayList<>();
+        byte[] buffer = new byte[Chunker.MAX_SIZE * 2];
+        int start = 0, end = 0;
+        boolean eof = false;
+        try (InputStream in = file.getInputStream()) {
+            while (true) {
+                if (!eof && end - start < Chunker.MAX_SIZE) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    int read = in.readNBytes(buffer, end, buffer.length - end);
+                    end += read;
+                    eof = end < buffer.length;
+                }
+                if (start == end) break;
+
+                int length = Chunker.nextChunk(buffer, start, end - start);
+                byte[] chunk = new byte[CHUNK_HEADER.length + length];
+                System.arraycopy(CHUNK_HEADER, 0, chunk, 0, CHUNK_HEADER.length);
+                System.arraycopy(buffer, start, chunk, CHUNK_HEADER.length, length);
+                String chunkHash = sha256(chunk);
+                getPackStore().append(chunkHash, chunk);
+
+                chunkHashes.add(chunkHash);
+                list.append(chunkHash).append('\0').append(length).append('\n');
+                start += length;
+            }
+        }
+
+        byte[] content = ("LST@" + file.getName() + '\0' + list).getBytes(StandardCharsets.UTF_8);
+        return new ChunkedFile(sha256(content), content, chunkHashes);
+    }
+
+    // 如果hash是切块保存的文件，返回它引用的所有块，否则返回null
+    ArrayList<String> getChunkHashes(String hash) {
+        try (InputStream in = getPackStore().openStream(hash)) {
+            if (in == null || !Arrays.equals(in.readNBytes(CHUNK_LIST_TYPE.length), CHUNK_LIST_TYPE)) return null;
+            String content = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return parseChunkList(content.substring(content.indexOf('\0') + 1));
         } catch (IOException e) {
             log.error(e);
+            return null;
         }
+    }
 
-        return null;
+    private static ArrayList<String> parseChunkList(String list) {
+        ArrayList<String> chunkHashes = new ArrayList<>();
+        for (String line : list.split("\n")) {
+            String[] parts = line.split("\0");
+            if (parts.length == 2) chunkHashes.add(parts[0]);
+        }
+        return chunkHashes;
     }
 
-    // 以某个哈希值保存object内容
-    void saveObjectWithHash(String content, String hash) {
-        String objectDir = project.getBasePath() + "/.autosave/objects/" + hash.substring(0, 2);
-        String objectFileName = hash.substring(2);
+    // 依次读取每一块的内容，同一时刻只打开一块
+    private class ChunkedInputStream extends InputStream {
+        private final ArrayList<String> chunkHashes;
+        private int next = 0;
+        private InputStream current;
+
+        ChunkedInputStream(ArrayList<String> chunkHashes) {
+            this.chunkHashes = chunkHashes;
+        }
 
-        WriteCommandAction.runWriteCommandAction(project, () -> {
-            try {
-                VirtualFile objectDirFile = VfsUtil.createDirectoryIfMissing(objectDir);
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
 
-                if (objectDirFile != null && objectDirFile.findChild(objectFileName) == null) {
-                    VirtualFile objectFile = objectDirFile.createChildData(this, objectFileName);
-                    objectFile.setBinaryContent(content.getBytes(StandardCharsets.UTF_8));
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (true) {
+                if (current == null) {
+                    if (next == chunkHashes.size()) return -1;
+                    current = openFileContent(chunkHashes.get(next++));
                 }
-
-            } catch (IOException e) {
-                log.error(e);
+                int read = current.read(b, off, len);
+                if (read > 0) return read;
+                current.close();
+                current = null;
             }
-        });
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) current.close();
+        }
+    }
+
+    // 以某个哈希值保存object内容
+    void saveObjectWithHash(byte[] content, String hash) {
+        getPackStore().append(hash, content);
+        // 新的目录object在下一次增量保存和浏览历史时马上会被读到
+        if (startsWith(content, DIR_TYPE)) getObjectCache().put(hash, new String(content, StandardCharsets.UTF_8));
     }
 
     void deleteObjectOfHash(String hash) {
-        String objectDir = project.getBasePath() + "/.autosave/objects/" + hash.substring(0, 2);
-        String objectFileName = hash.substring(2);
-
-        WriteCommandAction.runWriteCommandAction(project, () -> {
-            try {
-                VirtualFile objectDirFile = VfsUtil.createDirectoryIfMissing(objectDir);
-                if (objectDirFile != null) {
-                    VirtualFile object = objectDirFile.findChild(objectFileName);
-                    if (object != null) object.delete(this);
-                }
-            } catch (IOException e) {
-                log.error(e);
-            }
-        });
+        getObjectCache().invalidate(hash);
+        getPackStore().remove(hash);
+    }
+
+    // 将本次操作中新增和删除的object写入pack索引
+    void flushObjects() {
+        getPackStore().flush();
+    }
+
+    private PackStore getPackStore() {
+        return project.getService(PackStore.class);
+    }
+
+    private ObjectCache getObjectCache() {
+        return project.getService(ObjectCache.class);
+    }
+
+    private static boolean startsWith(byte[] content, byte[] prefix) {
+        return content.length >= prefix.length && Arrays.equals(content, 0, prefix.length, prefix, 0, prefix.length);
     }
 
     // 判断原始内容String描述的是目录还是文件
     Boolean isDirectory(String content) {
-        if (content.startsWith("FIL@")) return false;
+        if (content.startsWith("FIL@") || content.startsWith("LST@")) return false;
         if (content.startsWith("DIR@")) return true;
         return null;
     }
 
     // 添加FIL或DIR前缀
     String addPrefix(String content, String name, boolean isDirectory) {
-        log.info("added prefix for " + name);
         if (isDirectory) return "DIR@" + name + '\0' + content;
         else return "FIL@" + name + '\0' + content;
     }
 
-    // SHA256一个String
-    String sha256(String input) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-
-            byte[] hash = digest.digest(input.getBytes());
-
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
+    // object的头部：FIL或DIR前缀、名字和\0
+    static byte[] objectHeader(String name, boolean isDirectory) {
+        return ((isDirectory ? "DIR@" : "FIL@") + name + '\0').getBytes(StandardCharsets.UTF_8);
+    }
 
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            log.error(e);
-        }
-        return null;
+    // SHA256一段字节，每个线程复用同一个MessageDigest
+    String sha256(byte[] input) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return PackStore.bytesToHex(digest.digest(input));
     }
 
     public ReferenceCounter getReferenceCounter() {
         return new ReferenceCounter();
     }
 
+    // 一次保存或删除操作中的引用计数：增减先记在本对象中，saveReferences时一次提交到ReferenceStore
+    // 操作中途失败时未提交的变化直接丢弃；计数只在提交时修改，多个操作可以同时进行
     public class ReferenceCounter {
-        private final HashMap<String, Integer> referenceMap = new HashMap<>();
+        private final HashMap<String, Integer> changes = new HashMap<>();
 
         public void loadReferences() {
-            String referenceContent = getReferenceFileContent(); // 读取REFERENCE文件内容
-            if (referenceContent != null) {
-                String[] lines = referenceContent.split("\n");
-                for (String line : lines) {
-                    String[] parts = line.split("\0");
-                    if (parts.length == 2) {
-                        String hash = parts[0];
-                        int count = Integer.parseInt(parts[1]);
-                        referenceMap.put(hash, count);
-                    }
-                }
-            }
+            changes.clear();
         }
 
-        public void increment(String hash) {
-            referenceMap.put(hash, referenceMap.getOrDefault(hash, 0) + 1);
+        private int count(String hash) {
+            return getReferenceStore().get(hash) + changes.getOrDefault(hash, 0);
         }
 
-        public Boolean decrement(String hash) {
-            if (referenceMap.containsKey(hash)) {
-                int count = referenceMap.get(hash);
-                if (count > 1) {
-                    referenceMap.put(hash, count - 1);
-                    return false;
-                } else {
-                    referenceMap.remove(hash);
-                    return true;
-                }
-            }
-            return null;
+        public void increment(String hash) {
+            changes.merge(hash, 1, Integer::sum);
         }
 
-        public void saveReferences() {
-            StringBuilder content = new StringBuilder();
-            for (HashMap.Entry<String, Integer> entry : referenceMap.entrySet()) {
-                content.append(entry.getKey()).append('\0').append(entry.getValue()).append('\n');
-            }
-            saveReferenceFileContent(content.toString());
+        public boolean isReferenced(String hash) {
+            return count(hash) > 0;
         }
 
-        private String getReferenceFileContent() {
-            String referenceFilePath = project.getBasePath() + "/.autosave/REFERENCES";
-            VirtualFile referenceFile = VfsUtil.findFileByIoFile(new File(referenceFilePath), true);
-            if (referenceFile != null) {
-                try {
-                    return VfsUtil.loadText(referenceFile);
-                } catch (IOException e) {
-                    log.error(e);
-                }
-            }
-            return null;
+        // 计数降为0时返回true，原本就没有引用时返回null
+        public Boolean decrement(String hash) {
+            int count = count(hash);
+            if (count <= 0) return null;
+            changes.merge(hash, -1, Integer::sum);
+            return count == 1;
         }
 
-        private void saveReferenceFileContent(String content) {
-            String referenceFilePath = project.getBasePath() + "/.autosave/REFERENCES";
-            VirtualFile referenceFile = VfsUtil.findFileByIoFile(new File(referenceFilePath), true);
-            if (referenceFile != null) {
-                WriteCommandAction.runWriteCommandAction(project, () -> {
-                    try {
-                        referenceFile.setBinaryContent(content.getBytes(StandardCharsets.UTF_8));
-                    } catch (IOException e) {
-                        log.error(e);
-                    }
-                });
-            }
+        public void saveReferences() {
+            getReferenceStore().commit(changes);
+            changes.clear();
         }
     }
-}
\ No newline at end of file
+
+    private ReferenceStore getReferenceStore() {
+        return project.getService(ReferenceStore.class);
+    }
+}
@@ -1,5 +1,7 @@
 package com.github.tr303.autosave;
 
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VfsUtil;
@@ -9,9 +11,26 @@ import com.intellij.openapi.vfs.VirtualFile;
 import javax.swing.tree.DefaultMutableTreeNode;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 public class AutoSaveFunctional {
     private final Project project;
@@ -36,42 +55,59 @@ public class AutoSaveFunctional {
         }
     }
 
-    // 获得所有版本
+    // 获得所有版本，最新的在前
     public ArrayList<VersionInfo> getVersionList() {
-        String versionContent = ASD.getVersionsFileContent();
-        ArrayList<VersionInfo> versionList = new ArrayList<>();
-
-        String[] lines = versionContent.split("\n");
+        return new ArrayList<>(getVersionLog().getVersions());
+    }
 
-        for (String line : lines) {
-            String[] parts = line.split("\0");
-            if (parts.length == 3) {
-                String timestamp = parts[0].trim();
-                String tag = parts[1].trim();
-                String rootObject = parts[2].trim();
+    // 根目录为rootHash的版本，不存在时返回null
+    public VersionInfo getVersion(String rootHash) {
+        return getVersionLog().findByRoot(rootHash);
+    }
 
-                versionList.add(new VersionInfo(timestamp, tag, rootObject));
-            }
-        }
+    // 修改某个版本的名字
+    public Boolean renameVersion(String rootHash, String tag) {
+        return getVersionLog().rename(rootHash, tag);
+    }
 
-        return versionList;
+    private VersionLog getVersionLog() {
+        return project.getService(VersionLog.class);
     }
 
-    public Boolean saveVersionList(ArrayList<VersionInfo> versionList) {
-        StringBuilder versionContent = new StringBuilder();
-        for (VersionInfo info : versionList) {
-            versionContent.append(info.timestamp).append('\0').append(info.rootObject).append('\0').append(info.tag).append('\n');
+    // 修改object和引用计数的操作彼此互斥：保存时认为已经存在而跳过写入的object，不能同时被删除操作减到0并移出pack
+    // 同时持有回收的共享锁，垃圾回收清除时不会删掉这些操作刚写入的object
+    private <T> T withOperationLock(Supplier<T> operation) {
+        ObjectCollector collector = project.getService(ObjectCollector.class);
+        Lock mutation = collector.mutationLock();
+        Lock lock = collector.operationLock();
+        mutation.lock();
+        lock.lock();
+        try {
+            return operation.get();
+        } finally {
+            lock.unlock();
+            mutation.unlock();
         }
-        return ASD.saveVersionFileContent(versionContent.toString());
     }
 
     // 界面与功能层共用的树数据结构，用于传递项目树结构
+    // 节点记录对应object的哈希；按需构造的目录节点在子节点读入之前处于未加载状态
     public static class CustomTreeNode extends DefaultMutableTreeNode {
         private final boolean isDir;
+        private final String objectHash;
+        private boolean loaded;
+        private FileDiff diff; // 只显示变化的文件时，文件节点相对上一个版本的变化
 
         public CustomTreeNode(String name, boolean isDir) {
+            this(name, isDir, null);
+            loaded = true;
+        }
+
+        public CustomTreeNode(String name, boolean isDir, String objectHash) {
             super(name);
             this.isDir = isDir;
+            this.objectHash = objectHash;
+            this.loaded = !isDir;
         }
 
         public boolean isDirectory() {
@@ -81,13 +117,58 @@ public class AutoSaveFunctional {
         public String getName() {
             return (String) getUserObject();
         }
+
+        public String getObjectHash() {
+            return objectHash;
+        }
+
+        public boolean isLoaded() {
+            return loaded;
+        }
+
+        public void setLoaded(boolean loaded) {
+            this.loaded = loaded;
+        }
+
+        public FileDiff getDiff() {
+            return diff;
+        }
+
+        // 节点相对项目根目录的路径
+        public String getRelativePath() {
+            ArrayList<String> path = new ArrayList<>();
+            CustomTreeNode node = this;
+            while (node.getParent() != null) {
+                path.add(0, node.getName());
+                node = (CustomTreeNode) node.getParent();
+            }
+            return String.join("/", path);
+        }
+    }
+
+    // 某个版本目录树的根节点，只读取根目录object，子节点尚未加载；版本不存在时返回null
+    public CustomTreeNode getVersionRootNode(String versionHash) {
+        String objectContent = ASD.getObjectContentByHash(versionHash);
+        if (objectContent == null || !Boolean.TRUE.equals(ASD.isDirectory(objectContent))) return null;
+        return new CustomTreeNode(objectContent.substring(4, objectContent.indexOf('\0')), true, versionHash);
+    }
+
+    // 读取目录节点对应的目录object，构造它的直接子节点（名字取自目录条目，不读取文件object）；object缺失时返回null
+    public ArrayList<CustomTreeNode> getChildNodes(CustomTreeNode directory) {
+        String objectContent = ASD.getObjectContentByHash(directory.getObjectHash());
+        if (objectContent == null) return null;
+        ArrayList<CustomTreeNode> children = new ArrayList<>();
+        for (String entry : objectContent.substring(objectContent.indexOf('\0') + 1).split("\n")) {
+            String[] parts = entry.split("\0");
+            if (parts.length == 3 && !parts[2].equals(".autosave"))
+                children.add(new CustomTreeNode(parts[2], parts[1].equals("DIR"), parts[0]));
+        }
+        return children;
     }
 
     // 用时间戳获得某个版本的目录树
     public CustomTreeNode getDirectoryTreeByTimeStamp(String timestamp) {
-        ArrayList<VersionInfo> versions = getVersionList();
-
-        VersionInfo target = versions.stream().filter(v -> v.timestamp.equals(timestamp)).findFirst().orElse(null);
+        VersionInfo target = getVersionLog().findByTimestamp(timestamp);
         if (target != null) return getTreeNodeByVersionHash(target.rootObject);
         else return null;
     }
@@ -141,29 +222,20 @@ public class AutoSaveFunctional {
 
     // 获得某个版本的某个文件内容String
     public String getFileContentForVersionAndPath(String versionHash, CustomTreeNode target) {
-        ArrayList<String> path = new ArrayList<>();
-        CustomTreeNode node = target;
-        while (node.getParent() != null) {
-            path.add(0, node.getName());
-            node = (CustomTreeNode) node.getParent();
-        }
+        if (target.getObjectHash() != null) return ASD.getFileContentByHash(target.getObjectHash()); // 按需构造的节点已经记录了文件的哈希
+        return getFileContentForVersionAndPath(versionHash, target.getRelativePath());
+    }
 
-        String hash = versionHash;
-        while (!path.isEmpty()) {
-            String objectContent = ASD.getObjectContentByHash(hash);
-            String[] entries = objectContent.substring(objectContent.indexOf('\0') + 1).split("\n");
-            for (String entry : entries) {
-                String[] parts = entry.split("\0");
-                if (parts[2].equals(path.get(0)) && (path.size() == 1 || parts[1].equals("DIR")) && (path.size() > 1 || parts[1].equals("FIL"))) {
-                    path.remove(0);
-                    hash = parts[0];
-                    break;
-                }
-            }
-        }
+    // 获得某个版本中某个相对路径上的文件内容，文件不存在时返回null
+    public String getFileContentForVersionAndPath(String versionHash, String path) {
+        // 通过版本的路径索引直接查到文件的哈希
+        String hash = getFileHash(versionHash, path);
+        return hash == null ? null : ASD.getFileContentByHash(hash);
+    }
 
-        String fileContent = ASD.getObjectContentByHash(hash);
-        return fileContent.substring(fileContent.indexOf('\0') + 1);
+    // 某个版本中某个相对路径上的文件object哈希，不存在时返回null
+    public String getFileHash(String versionHash, String path) {
+        return project.getService(PathIndex.class).lookup(versionHash, path);
     }
 //
 //    private String findFileHashInVersion(String versionHash, ArrayList<String> path) {
@@ -219,6 +291,244 @@ public class AutoSaveFunctional {
 //        return null; // 未找到文件内容
 //    }
 
+    // 文件历史中的一个变化点：文件在这个版本中相对上一个版本被添加、修改或删除
+    public static class FileChange {
+        public enum Kind {ADDED, MODIFIED, DELETED}
+
+        final VersionInfo version;
+        final Kind kind;
+        final String fileHash; // 删除时为null
+
+        FileChange(VersionInfo version, Kind kind, String fileHash) {
+            this.version = version;
+            this.kind = kind;
+            this.fileHash = fileHash;
+        }
+    }
+
+    // 某个文件在哪些版本中发生了变化，最新的在前
+    // 按保存顺序比较相邻两个版本沿这条路径的各级哈希，遇到与上一个版本相同的目录哈希就停止，
+    // 开销只与路径深度和版本数有关，与项目大小无关
+    public ArrayList<FileChange> getFileHistory(String path) {
+        String[] names = path.split("/");
+        List<VersionInfo> versions = getVersionList();
+        ArrayList<FileChange> changes = new ArrayList<>();
+        String[] previous = new String[names.length + 1]; // 上一个版本中路径上每一级的哈希，最后一项是文件
+        for (int v = versions.size() - 1; v >= 0; v--) {
+            VersionInfo version = versions.get(v);
+            String[] chain = new String[names.length + 1];
+            chain[0] = version.rootObject;
+            for (int level = 0; level < names.length && chain[level] != null; level++) {
+                if (chain[level].equals(previous[level])) {
+                    // 这一级目录没有变化，下面的各级也不会变化
+                    System.arraycopy(previous, level + 1, chain, level + 1, names.length - level);
+                    break;
+                }
+                chain[level + 1] = findEntry(chain[level], names[level], level == names.length - 1 ? "FIL" : "DIR");
+            }
+
+            String before = previous[names.length];
+            String after = chain[names.length];
+            if (before == null && after != null) changes.add(new FileChange(version, FileChange.Kind.ADDED, after));
+            else if (before != null && after == null) changes.add(new FileChange(version, FileChange.Kind.DELETED, null));
+            else if (before != null && !before.equals(after)) changes.add(new FileChange(version, FileChange.Kind.MODIFIED, after));
+            previous = chain;
+        }
+        Collections.reverse(changes);
+        return changes;
+    }
+
+    // 目录object中名字和类型都匹配的子项的哈希，没有时返回null
+    private String findEntry(String dirHash, String name, String type) {
+        String objectContent = ASD.getObjectContentByHash(dirHash);
+        if (objectContent == null) return null;
+        for (String entry : objectContent.substring(objectContent.indexOf('\0') + 1).split("\n")) {
+            String[] parts = entry.split("\0");
+            if (parts.length == 3 && parts[2].equals(name) && parts[1].equals(type)) return parts[0];
+        }
+        return null;
+    }
+
+    // 两个版本之间一个文件的变化
+    public static class FileDiff {
+        final String path;
+        final FileChange.Kind kind;
+        final String oldHash; // 添加时为null
+        final String newHash; // 删除时为null
+
+        FileDiff(String path, FileChange.Kind kind, String oldHash, String newHash) {
+            this.path = path;
+            this.kind = kind;
+            this.oldHash = oldHash;
+            this.newHash = newHash;
+        }
+    }
+
+    // 比某个版本早一个的版本，没有时返回null
+    public VersionInfo getPreviousVersion(String rootHash) {
+        List<VersionInfo> versions = getVersionLog().getVersions();
+        for (int i = 0; i < versions.size() - 1; i++)
+            if (versions.get(i).rootObject.equals(rootHash)) return versions.get(i + 1);
+        return null;
+    }
+
+    // 比较两个版本的目录树，返回其中被添加、删除和修改的文件；oldRoot为null时新版本中的所有文件都算添加
+    // 只进入哈希不同的目录，相同的子树整个跳过，开销只与变化的多少有关，与项目大小无关
+    public ArrayList<FileDiff> diffVersions(String oldRoot, String newRoot) {
+        ArrayList<FileDiff> diffs = new ArrayList<>();
+        diffDirectory(oldRoot, newRoot, "", diffs);
+        return diffs;
+    }
+
+    private void diffDirectory(String oldHash, String newHash, String prefix, ArrayList<FileDiff> diffs) {
+        if (oldHash != null && oldHash.equals(newHash)) return;
+        TreeMap<String, String[]> oldEntries = readEntries(oldHash);
+        TreeMap<String, String[]> newEntries = readEntries(newHash);
+        TreeSet<String> names = new TreeSet<>(oldEntries.keySet());
+        names.addAll(newEntries.keySet());
+        for (String name : names) {
+            String[] before = oldEntries.get(name);
+            String[] after = newEntries.get(name);
+            String path = prefix + name;
+            if (before != null && after != null && before[1].equals(after[1])) {
+                if (before[0].equals(after[0])) continue;
+                if (after[1].equals("DIR")) diffDirectory(before[0], after[0], path + '/', diffs);
+                else diffs.add(new FileDiff(path, FileChange.Kind.MODIFIED, before[0], after[0]));
+            } else {
+                // 新增或删除的子树需要整个列出；文件和目录互相替换时算作删除加添加
+                if (before != null) listSubtree(before[0], before[1], path, FileChange.Kind.DELETED, diffs);
+                if (after != null) listSubtree(after[0], after[1], path, FileChange.Kind.ADDED, diffs);
+            }
+        }
+    }
+
+    private void listSubtree(String hash, String type, String path, FileChange.Kind kind, ArrayList<FileDiff> diffs) {
+        if (type.equals("DIR")) {
+            for (Map.Entry<String, String[]> entry : readEntries(hash).entrySet())
+                listSubtree(entry.getValue()[0], entry.getValue()[1], path + '/' + entry.getKey(), kind, diffs);
+        } else if (kind == FileChange.Kind.ADDED) {
+            diffs.add(new FileDiff(path, kind, null, hash));
+        } else {
+            diffs.add(new FileDiff(path, kind, hash, null));
+        }
+    }
+
+    // 目录object的条目：名字 -> {哈希, DIR或FIL}；hash为null或object缺失时为空
+    private TreeMap<String, String[]> readEntries(String dirHash) {
+        TreeMap<String, String[]> entries = new TreeMap<>();
+        String objectContent = dirHash == null ? null : ASD.getObjectContentByHash(dirHash);
+        if (objectContent == null) return entries;
+        for (String entry : objectContent.substring(objectContent.indexOf('\0') + 1).split("\n")) {
+            String[] parts = entry.split("\0");
+            if (parts.length == 3 && !parts[2].equals(".autosave")) entries.put(parts[2], new String[]{parts[0], parts[1]});
+        }
+        return entries;
+    }
+
+    // 某个版本相对上一个版本变化的文件组成的目录树，各级目录都已加载，文件节点带有各自的变化；版本不存在时返回null
+    public CustomTreeNode getChangedTreeNode(String versionHash) {
+        CustomTreeNode root = getVersionRootNode(versionHash);
+        if (root == null) return null;
+        root.setLoaded(true);
+        VersionInfo previous = getPreviousVersion(versionHash);
+        for (FileDiff diff : diffVersions(previous == null ? null : previous.rootObject, versionHash)) {
+            String[] names = diff.path.split("/");
+            CustomTreeNode parent = root;
+            for (int i = 0; i < names.length - 1; i++) {
+                CustomTreeNode child = null;
+                for (int c = parent.getChildCount() - 1; c >= 0 && child == null; c--) {
+                    CustomTreeNode candidate = (CustomTreeNode) parent.getChildAt(c);
+                    if (candidate.isDirectory() && candidate.getName().equals(names[i])) child = candidate;
+                }
+                if (child == null) {
+                    child = new CustomTreeNode(names[i], true);
+                    parent.add(child);
+                }
+                parent = child;
+            }
+            CustomTreeNode file = new CustomTreeNode(names[names.length - 1], false, diff.newHash);
+            file.diff = diff;
+            parent.add(file);
+        }
+        return root;
+    }
+
+    // 内容搜索的结果：某个版本中内容匹配的文件路径
+    public static class SearchResult {
+        final VersionInfo version;
+        final ArrayList<String> paths;
+
+        SearchResult(VersionInfo version, ArrayList<String> paths) {
+            this.version = version;
+            this.paths = paths;
+        }
+    }
+
+    // 在所有版本的文件内容中搜索，结果最新的版本在前；isRegex为false时按不区分大小写的字符串搜索
+    // 先用内容索引排除不可能匹配的文件object，多个版本共享的目录和文件object都只检查一次
+    public ArrayList<SearchResult> searchFileContents(String query, boolean isRegex) {
+        Pattern pattern = isRegex ? Pattern.compile(query)
+                : Pattern.compile(Pattern.quote(query), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        List<String> literals = isRegex ? TrigramIndex.requiredLiterals(query) : List.of(query);
+        ContentSearch search = new ContentSearch(pattern, project.getService(TrigramIndex.class).candidates(literals));
+
+        ArrayList<SearchResult> results = new ArrayList<>();
+        for (VersionInfo version : getVersionList()) {
+            ArrayList<String> paths = search.matchDirectory(version.rootObject);
+            if (!paths.isEmpty()) results.add(new SearchResult(version, paths));
+        }
+        return results;
+    }
+
+    private class ContentSearch {
+        private final Pattern pattern;
+        private final TrigramIndex.Candidates candidates;
+        private final HashMap<String, ArrayList<String>> directoryMatches = new HashMap<>(); // 目录object -> 其中匹配文件的相对路径
+        private final HashMap<String, Boolean> fileMatches = new HashMap<>();
+
+        ContentSearch(Pattern pattern, TrigramIndex.Candidates candidates) {
+            this.pattern = pattern;
+            this.candidates = candidates;
+        }
+
+        ArrayList<String> matchDirectory(String hash) {
+            ArrayList<String> cached = directoryMatches.get(hash);
+            if (cached != null) return cached;
+            ArrayList<String> paths = new ArrayList<>();
+            String objectContent = ASD.getObjectContentByHash(hash);
+            if (objectContent != null) { // 搜索期间版本可能被删除
+                for (String entry : objectContent.substring(objectContent.indexOf('\0') + 1).split("\n")) {
+                    String[] parts = entry.split("\0");
+                    if (parts.length != 3) continue;
+                    if (parts[1].equals("DIR")) {
+                        for (String childPath : matchDirectory(parts[0])) paths.add(parts[2] + '/' + childPath);
+                    } else if (matchFile(parts[0])) {
+                        paths.add(parts[2]);
+                    }
+                }
+            }
+            directoryMatches.put(hash, paths);
+            return paths;
+        }
+
+        private boolean matchFile(String hash) {
+            Boolean cached = fileMatches.get(hash);
+            if (cached != null) return cached;
+            boolean matched = false;
+            if (candidates.mayMatch(hash)) {
+                try (InputStream in = ASD.openFileContent(hash)) {
+                    // 超过索引大小上限的文件没有三元组可以筛选，在这里完整读取比较
+                    byte[] content = in.readAllBytes();
+                    matched = !TrigramIndex.isBinary(content) && pattern.matcher(new String(content, StandardCharsets.UTF_8)).find();
+                } catch (IOException e) {
+                    // object已经被删除
+                }
+            }
+            fileMatches.put(hash, matched);
+            return matched;
+        }
+    }
+
     public static String getCurrentTimeFormatted() {
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH-mm-ss");
         LocalDateTime now = LocalDateTime.now();
@@ -227,211 +537,329 @@ public class AutoSaveFunctional {
 
     // 删除某个版本
     public Boolean deleteVersion(String versionHash) {
-        ArrayList<VersionInfo> versions = getVersionList();
-        String targetHash = null;
-
-        for (VersionInfo version : versions) {
-            if (version.rootObject.equals(versionHash)) {
-                targetHash = version.rootObject;
-                versions.remove(version);
-                saveVersionList(versions);
-                break;
-            }
-        }
+        return withOperationLock(() -> deleteVersionLocked(versionHash));
+    }
 
-        if (targetHash == null) {
+    private Boolean deleteVersionLocked(String versionHash) {
+        if (!Boolean.TRUE.equals(getVersionLog().remove(versionHash))) {
             return false;
         }
 
         AutoSaveData.ReferenceCounter rc = ASD.getReferenceCounter();
         rc.loadReferences();
-        deleteVersionTreeRecursive(targetHash, rc);
+        deleteVersionTreeRecursive(versionHash, true, rc);
+        ASD.flushObjects();
         rc.saveReferences();
+        ASD.refreshAutosaveDir();
         return true;
     }
 
-    private void deleteVersionTreeRecursive(String hash, AutoSaveData.ReferenceCounter rc) {
+    // 引用计数降为0的object才删除，并继续释放它对子项的引用
+    // 目录object需要展开全部子项，文件object只需检查是否为切块保存
+    // 批量删除多个版本：版本日志和引用计数各只读写一次，多个版本共享的object在最后一个引用被删除时一起释放
+    public int deleteVersions(List<VersionInfo> versions) {
+        return withOperationLock(() -> {
+            ArrayList<VersionInfo> removed = getVersionLog().removeAll(versions);
+            if (removed.isEmpty()) return 0;
+            AutoSaveData.ReferenceCounter rc = ASD.getReferenceCounter();
+            rc.loadReferences();
+            for (VersionInfo version : removed) deleteVersionTreeRecursive(version.rootObject, true, rc);
+            ASD.flushObjects();
+            rc.saveReferences();
+            ASD.refreshAutosaveDir();
+            return removed.size();
+        });
+    }
+
+    private void deleteVersionTreeRecursive(String hash, boolean isDirectory, AutoSaveData.ReferenceCounter rc) {
         if (hash.isEmpty()) return;
-        String content = ASD.getObjectContentByHash(hash);
-        if (ASD.isDirectory(content)) {
+        if (!Boolean.TRUE.equals(rc.decrement(hash))) return;
+
+        String content = isDirectory ? ASD.getObjectContentByHash(hash) : null;
+        ArrayList<String> chunkHashes = isDirectory ? null : ASD.getChunkHashes(hash);
+        ASD.deleteObjectOfHash(hash);
+        if (chunkHashes != null) {
+            for (String chunkHash : chunkHashes)
+                if (Boolean.TRUE.equals(rc.decrement(chunkHash))) ASD.deleteObjectOfHash(chunkHash);
+        }
+        if (content != null) {
             String trueContent = content.substring(content.indexOf('\0') + 1);
             String[] entries = trueContent.split("\n");
             for (String entry : entries) {
                 String[] parts = entry.split("\0");
-                deleteVersionTreeRecursive(parts[0], rc);
+                if (parts.length == 3) deleteVersionTreeRecursive(parts[0], "DIR".equals(parts[1]), rc);
             }
         }
-        if (rc.decrement(hash)) ASD.deleteObjectOfHash(hash);
     }
 
-    // 回溯到某个版本
+    // 回溯到某个版本；需要在后台线程调用，写回文件的部分在界面线程的写操作中完成
+    // 先在锁内把工作区保存为一个临时版本（只有变化的路径需要重新读取），与目标版本比较并暂存需要写回的文件；
+    // 再在锁外只删除、覆盖或创建不同的文件，全部修改在同一个写操作中完成，未变化的文件不会触发重新索引
     public Boolean revertToVersion(String versionHash) {
-        ArrayList<VersionInfo> versions = getVersionList();
-        String targetHash = null;
-        String targetTime = null;
-
-        for (VersionInfo version : versions) {
-            if (version.rootObject.equals(versionHash)) {
-                targetHash = version.rootObject;
-                targetTime = version.timestamp;
-                break;
+        VirtualFile projectDir = VfsUtil.findFileByIoFile(new File(project.getBasePath()), true);
+        if (projectDir == null) return null;
+        WorkspacePlan plan = withOperationLock(() -> planRevert(versionHash));
+        if (plan == null) return false;
+        try {
+            if (!applyPlan(plan, projectDir)) return false;
+        } finally {
+            plan.discard();
+        }
+
+        // 删除目标之后保存的版本（包括临时版本）；按日志顺序而不是时间戳判断，同一秒内保存的版本也能区分先后
+        withOperationLock(() -> {
+            List<VersionInfo> versions = getVersionLog().getVersions();
+            return deleteVersions(versions.subList(0, Math.max(versions.indexOf(plan.target), 0)));
+        });
+        return true;
+    }
+
+    private WorkspacePlan planRevert(String versionHash) {
+        VersionInfo target = getVersionLog().findByRoot(versionHash);
+        if (target == null) return null;
+
+        // 回溯会覆盖文件，临时版本完整遍历项目而不依赖变化追踪；大小和修改时间未变的文件不会被重新读取
+        project.getService(DirtyPathTracker.class).invalidate();
+        if (saveCurrentProjectAsVersionLocked("Before revert to " + target.tag) == null) return null;
+        VersionInfo current = getVersionLog().getLatest();
+
+        WorkspacePlan plan = new WorkspacePlan(target);
+        try {
+            // 比较只列出文件，目标版本中的空目录需要单独创建
+            collectDirectories(versionHash, "", plan.keptDirectories, plan.directories);
+            for (FileDiff diff : diffVersions(current == null ? null : current.rootObject, versionHash)) {
+                if (diff.kind == FileChange.Kind.DELETED) plan.deletions.add(diff.path);
+                else plan.files.put(diff.path, stageFileObject(diff.newHash));
             }
+            return plan;
+        } catch (IOException e) {
+            log.error(e);
+            plan.discard();
+            return null;
         }
+    }
 
-        if (targetHash == null) {
-            return false;
+    // 版本中所有目录的相对路径，删除文件后这些目录即使变空也保留；其中的空目录另外记入emptyDirectories
+    private void collectDirectories(String dirHash, String path, HashSet<String> directories, ArrayList<String> emptyDirectories) {
+        TreeMap<String, String[]> entries = readEntries(dirHash);
+        if (entries.isEmpty() && !path.isEmpty()) emptyDirectories.add(path);
+        for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+            if (!entry.getValue()[1].equals("DIR")) continue;
+            String childPath = path.isEmpty() ? entry.getKey() : path + "/" + entry.getKey();
+            directories.add(childPath);
+            collectDirectories(entry.getValue()[0], childPath, directories, emptyDirectories);
         }
+    }
 
+    // 把某个版本中的一个文件或目录恢复到工作区的同一路径，不修改版本历史；需要在后台线程调用
+    // 目录中版本里有的文件被创建或覆盖，工作区中多出的文件保留；节点为根目录时恢复整个项目
+    public Boolean restorePath(String versionHash, CustomTreeNode node) {
         VirtualFile projectDir = VfsUtil.findFileByIoFile(new File(project.getBasePath()), true);
         if (projectDir == null) return null;
-        WriteCommandAction.runWriteCommandAction(project, () -> {
+        WorkspacePlan plan = withOperationLock(() -> planRestore(versionHash, node));
+        if (plan == null) return false;
+        try {
+            return applyPlan(plan, projectDir);
+        } finally {
+            plan.discard();
+        }
+    }
+
+    private WorkspacePlan planRestore(String versionHash, CustomTreeNode node) {
+        VersionInfo version = getVersionLog().findByRoot(versionHash);
+        if (version == null) return null; // 版本已经被删除
+        String path = node.getRelativePath();
+        String type = node.isDirectory() ? "DIR" : "FIL";
+        String hash = node.getObjectHash() != null ? node.getObjectHash() : resolvePath(versionHash, path, type);
+        if (hash == null) return null; // 这个版本中没有这个路径（例如只显示变化时被删除的文件）
+
+        WorkspacePlan plan = new WorkspacePlan(version);
+        try {
+            planEntry(hash, type, path, plan);
+            return plan;
+        } catch (IOException e) {
+            log.error(e);
+            plan.discard();
+            return null;
+        }
+    }
+
+    // 从根目录沿路径找到object的哈希，没有时返回null
+    private String resolvePath(String versionHash, String path, String type) {
+        if (path.isEmpty()) return versionHash;
+        String[] names = path.split("/");
+        String hash = versionHash;
+        for (int i = 0; i < names.length && hash != null; i++)
+            hash = findEntry(hash, names[i], i == names.length - 1 ? type : "DIR");
+        return hash;
+    }
+
+    private void planEntry(String hash, String type, String path, WorkspacePlan plan) throws IOException {
+        if (!type.equals("DIR")) {
+            plan.files.put(path, stageFileObject(hash));
+            return;
+        }
+        if (!path.isEmpty()) plan.directories.add(path);
+        for (Map.Entry<String, String[]> entry : readEntries(hash).entrySet())
+            planEntry(entry.getValue()[0], entry.getValue()[1], path.isEmpty() ? entry.getKey() : path + "/" + entry.getKey(), plan);
+    }
+
+    // 把文件object的原始字节拷贝到pack目录下的临时文件，写回工作区时不再需要读取object
+    private Path stageFileObject(String hash) throws IOException {
+        Path spool = project.getService(PackStore.class).createSpoolFile();
+        try (InputStream in = ASD.openFileContent(hash); OutputStream out = Files.newOutputStream(spool)) {
+            in.transferTo(out);
+            return spool;
+        } catch (IOException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+    }
+
+    // 回溯和恢复需要对工作区做的修改，文件内容已经暂存在临时文件中
+    private static class WorkspacePlan {
+        final VersionInfo target;
+        final ArrayList<String> deletions = new ArrayList<>(); // 要删除的文件
+        final ArrayList<String> directories = new ArrayList<>(); // 要创建的目录
+        final LinkedHashMap<String, Path> files = new LinkedHashMap<>(); // 要创建或覆盖的文件 -> 暂存的内容
+        final HashSet<String> keptDirectories = new HashSet<>(); // 删除文件后变空也保留的目录
+
+        WorkspacePlan(VersionInfo target) {
+            this.target = target;
+        }
+
+        void discard() {
+            for (Path spool : files.values()) {
+                try {
+                    Files.deleteIfExists(spool);
+                } catch (IOException ignored) {
+                    // 残留的临时文件在下次打开pack时清理
+                }
+            }
+        }
+    }
+
+    // 在界面线程的一个写操作中执行计划；调用线程不持有锁，等待界面线程时不会挡住保存和删除
+    private boolean applyPlan(WorkspacePlan plan, VirtualFile projectDir) {
+        boolean[] success = {true};
+        ApplicationManager.getApplication().invokeAndWait(() -> WriteCommandAction.runWriteCommandAction(project, () -> {
             try {
-                for (VirtualFile child : projectDir.getChildren())
-                    if (!child.getName().equals(".autosave")) {
-                        child.delete(this);
+                // 先删除，文件和目录互相替换时同名的旧项要先让出位置
+                for (String path : plan.deletions) {
+                    VirtualFile file = projectDir.findFileByRelativePath(path);
+                    if (file == null) continue;
+                    VirtualFile parent = file.getParent();
+                    file.delete(this);
+                    deleteEmptyDirectories(parent, projectDir, plan.keptDirectories);
+                }
+                for (String path : plan.directories) findOrCreateDirectory(projectDir, path);
+                for (Map.Entry<String, Path> entry : plan.files.entrySet()) {
+                    String path = entry.getKey();
+                    int slash = path.lastIndexOf('/');
+                    VirtualFile parent = slash < 0 ? projectDir : findOrCreateDirectory(projectDir, path.substring(0, slash));
+                    String name = path.substring(slash + 1);
+                    VirtualFile file = parent.findChild(name);
+                    if (file != null && file.isDirectory()) {
+                        file.delete(this); // 目录中只剩被忽略的内容，或者恢复时文件和目录互相替换
+                        file = null;
                     }
+                    if (file == null) file = parent.createChildData(this, name);
+                    try (InputStream in = Files.newInputStream(entry.getValue()); OutputStream out = file.getOutputStream(this)) {
+                        in.transferTo(out);
+                    }
+                }
             } catch (IOException e) {
                 log.error(e);
+                success[0] = false;
             }
-        });
-        revertVersionTreeRecursive(versionHash, projectDir);
+        }), ModalityState.defaultModalityState());
+        return success[0];
+    }
 
-        for (VersionInfo info : versions) {
-            if (info.timestamp.compareTo(targetTime) > 0) deleteVersion(info.rootObject);
+    // 逐级找到或创建目录，路径上同名的文件被删除
+    private VirtualFile findOrCreateDirectory(VirtualFile projectDir, String path) throws IOException {
+        VirtualFile dir = projectDir;
+        for (String name : path.split("/")) {
+            VirtualFile child = dir.findChild(name);
+            if (child != null && !child.isDirectory()) {
+                child.delete(this);
+                child = null;
+            }
+            dir = child != null ? child : dir.createChildDirectory(this, name);
         }
-
-        return true;
+        return dir;
     }
 
-    private void revertVersionTreeRecursive(String hash, VirtualFile file) {
-        String objectContent = ASD.getObjectContentByHash(hash);
-        if (ASD.isDirectory(objectContent)) {
-            String trueContent = objectContent.substring(objectContent.indexOf('\0') + 1);
-            String[] entries = trueContent.split("\n");
-            for (String entry : entries) {
-                String[] parts = entry.split("\0");
-                String entryHash = parts[0];
-                String entryType = parts[1];
-                String entryName = parts[2];
-
-                WriteCommandAction.runWriteCommandAction(project, () -> {
-                    try {
-                        if ("DIR".equals(entryType)) {
-                            VirtualFile newDir = file.createChildDirectory(this, entryName);
-                            revertVersionTreeRecursive(entryHash, newDir);
-                        } else if ("FIL".equals(entryType)) {
-                            VirtualFile newFile = file.createChildData(this, entryName);
-                            revertVersionTreeRecursive(entryHash, newFile);
-                        }
-                    } catch (IOException e) {
-                        log.error(e);
-                    }
-                });
-            }
-        } else {
-            String trueContent = objectContent.substring(objectContent.indexOf('\0') + 1);
-            WriteCommandAction.runWriteCommandAction(project, () -> {
-                try {
-                    file.setBinaryContent(trueContent.getBytes());
-                } catch (IOException e) {
-                    log.error(e);
-                }
-            });
+    // 删除文件后逐级删除变空的上级目录，目标版本中存在的目录（包括空目录）保留
+    private void deleteEmptyDirectories(VirtualFile dir, VirtualFile projectDir, HashSet<String> keptDirectories) throws IOException {
+        while (dir != null && !dir.equals(projectDir) && dir.getChildren().length == 0) {
+            String path = dir.getPath().substring(projectDir.getPath().length() + 1);
+            if (keptDirectories.contains(path)) return;
+            VirtualFile parent = dir.getParent();
+            dir.delete(this);
+            dir = parent;
         }
     }
 
     // 保存现在的项目作为一个版本
     public Boolean saveCurrentProjectAsVersion(String tag) {
+        return withOperationLock(() -> saveCurrentProjectAsVersionLocked(tag));
+    }
+
+    private Boolean saveCurrentProjectAsVersionLocked(String tag) {
         String projectPath = project.getBasePath();
         if (projectPath == null) return null;
         VirtualFile projectDir = VfsUtil.findFileByIoFile(new File(projectPath), true);
+        if (projectDir == null) return null;
 
-        ArrayList<VersionInfo> versionList = getVersionList();
+        VersionLog versionLog = getVersionLog();
+        VersionInfo latest = versionLog.getLatest();
 
         AutoSaveData.ReferenceCounter rc = ASD.getReferenceCounter();
         rc.loadReferences();
 
-        if (!versionList.isEmpty()) {
-            String hash = saveVersionTreeRecursive(versionList.get(0).rootObject, projectDir, rc);
-            if (versionList.get(0).rootObject.equals(hash)) return false;
-            else {
-                versionList.add(0, new VersionInfo(getCurrentTimeFormatted(), hash, tag));
-                rc.increment(hash);
-                rc.saveReferences();
-                return saveVersionList(versionList);
-            }
-        } else {
-            String hash = saveVersionTreeRecursive(null, projectDir, rc);
-            versionList.add(0, new VersionInfo(getCurrentTimeFormatted(), hash, tag));
-            rc.increment(hash);
-            rc.saveReferences();
-            return saveVersionList(versionList);
+        String previousRoot = latest == null ? null : latest.rootObject;
+        DirtyPathTracker tracker = project.getService(DirtyPathTracker.class);
+        TreeSet<String> dirtyPaths = tracker.takeDirtyPaths(previousRoot);
+        if (dirtyPaths != null && !rc.isReferenced(previousRoot)) dirtyPaths = null;
+        if (dirtyPaths != null && dirtyPaths.isEmpty()) {
+            tracker.markClean(previousRoot);
+            return false;
         }
-    }
 
-    private String saveVersionTreeRecursive(String hash, VirtualFile file, AutoSaveData.ReferenceCounter rc) {
-        if (hash == null) {
-            if (file.isDirectory()) {
-                StringBuilder dirContent = new StringBuilder();
-                for (VirtualFile child : file.getChildren())
-                    if (!child.getName().equals(".autosave")) {
-                        String childHash = saveVersionTreeRecursive(null, child, rc);
-                        rc.increment(childHash);
-                        dirContent.append(childHash).append(child.isDirectory() ? "\0DIR\0" : "\0FIL\0").append(child.getName()).append('\n');
-                    }
-                String finalContent = ASD.addPrefix(String.valueOf(dirContent), file.getName(), true);
-                String finalHash = ASD.sha256(finalContent);
-                ASD.saveObjectWithHash(finalContent, finalHash);
-                return finalHash;
+        WorkingTreeIndex index = project.getService(WorkingTreeIndex.class);
+        SnapshotFilter filter = new SnapshotFilter(project);
+        String hash;
+        SnapshotEngine engine;
+        try {
+            if (dirtyPaths != null) {
+                // 增量保存：只重建变化路径上的目录
+                ConcurrentSkipListMap<String, WorkingTreeIndex.Entry> entries = index.copyEntries();
+                for (String dirtyPath : dirtyPaths) WorkingTreeIndex.removeSubtree(entries, dirtyPath);
+                engine = new SnapshotEngine(ASD, index, filter, rc, entries);
+                hash = engine.saveChangedPaths(projectDir, previousRoot, dirtyPaths);
             } else {
-                String fileContent = ASD.getFileContent(file);
-                String finalContent = ASD.addPrefix(fileContent, file.getName(), false);
-                String finalHash = ASD.sha256(finalContent);
-                ASD.saveObjectWithHash(finalContent, finalHash);
-                return finalHash;
-            }
-        }
-
-        String objectContent = ASD.getObjectContentByHash(hash);
-
-        if (!ASD.isDirectory(objectContent)) {
-            String fileContent = ASD.addPrefix(ASD.getFileContent(file), file.getName(), false);
-
-            String fileHash = ASD.sha256(fileContent);
-            if (fileHash.equals(hash)) return hash;
-            else {
-                ASD.saveObjectWithHash(fileContent, fileHash);
-                return fileHash;
+                engine = new SnapshotEngine(ASD, index, filter, rc, new ConcurrentSkipListMap<>());
+                hash = engine.saveTree(projectDir);
             }
+            index.replace(engine.getNewEntries());
+        } catch (RuntimeException e) {
+            tracker.invalidate();
+            throw e;
         }
+        tracker.markClean(hash);
 
-        String[] entries = objectContent.substring(objectContent.indexOf('\0') + 1).split("\n");
-        StringBuilder dirContent = new StringBuilder();
-        for (VirtualFile child : file.getChildren())
-            if (!child.getName().equals(".autosave")) {
-                boolean found = false;
-                for (String entry : entries) {
-                    String[] parts = entry.split("\0");
-                    if (parts[2].equals(child.getName())) {
-                        if ((parts[1].equals("DIR") && child.isDirectory()) || (parts[1].equals("FIL") && !child.isDirectory())) {
-                            String childHash = saveVersionTreeRecursive(parts[0], child, rc);
-                            rc.increment(childHash);
-                            dirContent.append(childHash).append('\0').append(parts[1]).append('\0').append(child.getName()).append('\n');
-                            found = true;
-                            break;
-                        }
-                    }
-                }
-                if (!found) {
-                    String childHash = saveVersionTreeRecursive(null, child, rc);
-                    rc.increment(childHash);
-                    dirContent.append(childHash).append(child.isDirectory() ? "\0DIR\0" : "\0FIL\0").append(child.getName()).append('\n');
-                }
-            }
+        if (hash.equals(previousRoot)) return false;
 
-        String finalContent = ASD.addPrefix(String.valueOf(dirContent), file.getName(), true);
-        String finalHash = ASD.sha256(finalContent);
-        if (!finalHash.equals(hash)) ASD.saveObjectWithHash(finalContent, finalHash);
-        return finalHash;
+        rc.increment(hash);
+        ASD.flushObjects();
+        rc.saveReferences();
+        Boolean saved = versionLog.append(getCurrentTimeFormatted(), hash, tag);
+        ASD.refreshAutosaveDir();
+        project.getService(PathIndex.class).add(hash, engine.getVersionFiles());
+        project.getService(TrigramIndex.class).enqueue(engine.getWrittenFiles()); // 新文件在后台加入内容索引
+        project.getService(VersionRetention.class).schedulePrune(); // 在后台按保留策略清理过期的版本
+        project.getService(StorageQuota.class).scheduleCheck(); // 超过磁盘配额时在后台压缩
+        return saved;
     }
-}
+}
\ No newline at end of file
@@ -5,74 +5,98 @@ import com.intellij.notification.NotificationType;
 import com.intellij.notification.Notifications;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.event.DocumentListener;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectLocator;
 import com.intellij.openapi.project.ProjectManager;
 import com.intellij.openapi.project.ProjectManagerListener;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.messages.MessageBus;
 import org.jetbrains.annotations.NotNull;
 
-import java.time.Duration;
-import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.Executors;
 
+// 按项目调度自动保存：编辑某个项目的文档时为该项目设置计时器，没有编辑的项目不产生任何开销
+// 停止编辑10秒后保存；持续编辑时，距第一次未保存的编辑1分钟后也会保存
 public class AutoSaveScheduler implements Disposable {
+    private static final long IDLE_DELAY_SECONDS = 10;
+    private static final long MAX_DELAY_SECONDS = 60;
+
     private ScheduledExecutorService scheduler;
-    private boolean isRunning = false; // 状态标识符，表示任务是否正在运行
-    private boolean hasChanged = false; // 上次保存后是否有新的更改
-    private Instant lastEditTime = Instant.now(); // 上次编辑的时间
-    private Instant lastSaveTime = Instant.now(); // 上次保存的时间
+    private boolean isRunning = false; // 状态标识符，表示调度器是否正在运行
+    private final ConcurrentHashMap<Project, ProjectState> states = new ConcurrentHashMap<>();
+
+    // 一个项目的未保存状态，所有字段由对象锁保护
+    private static class ProjectState {
+        ScheduledFuture<?> idleTimer; // 每次编辑重新计时
+        ScheduledFuture<?> maxDelayTimer; // 从第一次未保存的编辑开始计时，不因后续编辑推迟
+        boolean isSaving = false; // 是否有保存正在后台执行
+        boolean editedWhileSaving = false; // 保存期间是否又有新的编辑
+
+        void cancelTimers() {
+            if (idleTimer != null) idleTimer.cancel(false);
+            if (maxDelayTimer != null) maxDelayTimer.cancel(false);
+            idleTimer = null;
+            maxDelayTimer = null;
+        }
+    }
 
-    // 构造函数，在服务初始化时启动调度任务
+    // 构造函数，在服务初始化时启动调度器
     public AutoSaveScheduler() {
-        startScheduler(); // 在服务初始化时启动任务
+        startScheduler(); // 在服务初始化时启动调度器
         addDocumentListeners(); // 添加文档监听器
         addProjectCloseListener(); // 添加项目关闭监听器
     }
 
-    // 启动定时任务的方法
-    public void startScheduler() {
-        if (isRunning) {
-            System.out.println("Scheduler is already running.");
-            return;
-        }
-
-        scheduler = Executors.newScheduledThreadPool(1);
+    // 启动调度器；调度器只执行各项目的计时器，没有周期任务
+    public synchronized void startScheduler() {
+        if (isRunning) return;
 
-        // 每秒检查一次保存条件（10秒未编辑 或 1分钟内未保存）
-        scheduler.scheduleAtFixedRate(this::checkSaveConditions, 0, 1, TimeUnit.SECONDS);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AutoSave Scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
         isRunning = true; // 更新状态为运行中
         System.out.println("Scheduler started.");
     }
 
-    // 手动停止定时任务的方法
-    public void stopScheduler() {
+    // 手动停止调度器，丢弃所有未触发的计时器
+    public synchronized void stopScheduler() {
         if (!isRunning) {
             System.out.println("Scheduler is not running.");
             return;
         }
 
-        if (scheduler != null) {
-            scheduler.shutdown();
-            isRunning = false; // 更新状态为已停止
-            System.out.println("Scheduler stopped.");
+        for (ProjectState state : states.values()) {
+            synchronized (state) {
+                state.cancelTimers();
+            }
         }
+        scheduler.shutdownNow();
+        isRunning = false; // 更新状态为已停止
+        System.out.println("Scheduler stopped.");
     }
 
-    // 添加文档监听器，遍历所有项目中的文档
+    // 添加文档监听器，只标记被编辑文档所属的项目
     private void addDocumentListeners() {
         EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new DocumentListener() {
             @Override
             public void documentChanged(@NotNull DocumentEvent event) {
-                lastEditTime = Instant.now(); // 更新上次编辑时间
-                hasChanged = true;
+                VirtualFile file = FileDocumentManager.getInstance().getFile(event.getDocument());
+                if (file == null) return; // 不属于任何文件的文档，例如预览窗口中的内容
+                for (Project project : ProjectLocator.getInstance().getProjectsForFile(file)) onProjectEdited(project);
             }
-        });
+        }, this);
     }
 
     // 订阅项目关闭事件
@@ -83,60 +107,91 @@ public class AutoSaveScheduler implements Disposable {
         messageBus.connect(this).subscribe(ProjectManager.TOPIC, new ProjectManagerListener() {
             @Override
             public void projectClosing(@NotNull Project project) {
+                ProjectState state = states.remove(project);
+                if (state != null) {
+                    synchronized (state) {
+                        state.cancelTimers();
+                    }
+                }
                 // 当项目关闭时自动保存项目
                 autoSaveOnProjectClose(project);
             }
         });
     }
 
-    // 定时检查是否满足保存条件
-    private void checkSaveConditions() {
-        Duration sinceLastEdit = Duration.between(lastEditTime, Instant.now());
-        Duration sinceLastSave = Duration.between(lastSaveTime, Instant.now());
-
-        // 近期未编辑
-        if (hasChanged && sinceLastEdit.getSeconds() >= 10) {
-            autoSave("Auto Save: User Stopped Editing");
+    // 项目中的文档被编辑：重新开始空闲计时，第一次未保存的编辑同时开始最长等待计时
+    private void onProjectEdited(Project project) {
+        if (project.isDisposed()) return;
+        ProjectState state = states.computeIfAbsent(project, p -> new ProjectState());
+        synchronized (state) {
+            if (state.isSaving) {
+                state.editedWhileSaving = true;
+                return;
+            }
+            if (!isRunning) return;
+            if (state.idleTimer != null) state.idleTimer.cancel(false);
+            state.idleTimer = scheduler.schedule(() -> autoSave(project, "Auto Save: User Stopped Editing"), IDLE_DELAY_SECONDS, TimeUnit.SECONDS);
+            if (state.maxDelayTimer == null)
+                state.maxDelayTimer = scheduler.schedule(() -> autoSave(project, "Auto Save: 1 min since last version"), MAX_DELAY_SECONDS, TimeUnit.SECONDS);
         }
+    }
 
-        // 1分钟内无任何保存
-        if (hasChanged && sinceLastSave.getSeconds() >= 60) {
-            autoSave("Auto Save: 1 min since last version");
+    // 计时器触发：取消该项目的另一个计时器，在后台线程中保存，不阻塞调度线程
+    private void autoSave(Project project, String saveReason) {
+        ProjectState state = states.get(project);
+        if (state == null) return; // 项目已关闭
+        synchronized (state) {
+            if (state.isSaving) return;
+            state.cancelTimers();
+            state.isSaving = true;
         }
+
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            try {
+                saveProject(project, saveReason);
+            } finally {
+                boolean editedWhileSaving;
+                synchronized (state) {
+                    state.isSaving = false;
+                    editedWhileSaving = state.editedWhileSaving;
+                    state.editedWhileSaving = false;
+                }
+                // 保存期间的新编辑触发下一次保存，项目已经关闭时除外
+                if (editedWhileSaving && states.get(project) == state) onProjectEdited(project);
+            }
+        });
     }
 
-    // 自动保存函数
-    private void autoSave(String saveReason) {
+    private void saveProject(Project project, String saveReason) {
+        if (project.isDisposed()) return;
         System.out.println("########### " + saveReason + " ###########");
-        Project[] openProjects = ProjectManager.getInstance().getOpenProjects();
-        if (openProjects.length == 0) {
-            System.out.println("No open projects.");
-            return;
-        }
 
         // 确保保存操作在 Event Dispatch Thread (EDT) 中同步执行
-        ApplicationManager.getApplication().invokeAndWait(() -> {
-            FileDocumentManager.getInstance().saveAllDocuments();
-        });
+        ApplicationManager.getApplication().invokeAndWait(() -> saveProjectDocuments(project));
 
-        for (Project project : openProjects) {
-            if (project == null) continue; // 安全检查
+        Notification notification = new Notification("AutoSaveNotifications", "Saving current version", "Please wait...", NotificationType.INFORMATION);
+        Notifications.Bus.notify(notification, project);
 
-            Notification notification = new Notification("AutoSaveNotifications", "Saving current version", "Please wait...", NotificationType.INFORMATION);
-            Notifications.Bus.notify(notification, project);
+        Boolean result = new AutoSaveFunctional(project).saveCurrentProjectAsVersion(saveReason);
 
-            Boolean result = new AutoSaveFunctional(project).saveCurrentProjectAsVersion(saveReason);
+        if (result != null && result) {
+            notification.setContent("Succeed！");
+        } else {
+            notification.setContent("No change detected！There is nothing to save");
+        }
 
-            if (result != null && result) {
-                notification.setContent("Succeed！");
-                lastSaveTime = Instant.now(); // 更新上次保存时间
-                hasChanged = false;
-            } else {
-                notification.setContent("No change detected！There is nothing to save");
-                hasChanged = false;
-            }
+        Notifications.Bus.notify(notification, project);
+    }
 
-            Notifications.Bus.notify(notification, project);
+    // 只把这个项目中未保存的文档写入磁盘
+    private static void saveProjectDocuments(Project project) {
+        if (project.isDisposed()) return;
+        String basePath = project.getBasePath();
+        FileDocumentManager documentManager = FileDocumentManager.getInstance();
+        for (Document document : documentManager.getUnsavedDocuments()) {
+            VirtualFile file = documentManager.getFile(document);
+            if (file != null && basePath != null && VfsUtilCore.isAncestorOrSelf(basePath, file))
+                documentManager.saveDocument(document);
         }
     }
 
@@ -145,9 +200,7 @@ public class AutoSaveScheduler implements Disposable {
         System.out.println("########### Auto Save on Project Close ###########");
 
         // 确保保存操作在 Event Dispatch Thread (EDT) 中同步执行
-        ApplicationManager.getApplication().invokeAndWait(() -> {
-            FileDocumentManager.getInstance().saveAllDocuments();
-        });
+        ApplicationManager.getApplication().invokeAndWait(() -> saveProjectDocuments(project));
 
         if (project != null) {
             Notification notification = new Notification("AutoSaveNotifications", "Saving current version", "Please wait...", NotificationType.INFORMATION);
@@ -167,6 +220,6 @@ public class AutoSaveScheduler implements Disposable {
 
     @Override
     public void dispose() {
-        stopScheduler(); // 调用关闭方法时停止调度任务
+        stopScheduler(); // 调用关闭方法时停止调度器
     }
 }
@@ -0,0 +1,65 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.PersistentStateComponent;
+import com.intellij.openapi.components.State;
+import com.intellij.openapi.components.Storage;
+import org.jetbrains.annotations.NotNull;
+
+// 插件的全局设置，保存在IDE配置目录的autosave.xml中
+@State(name = "AutoSaveSettings", storages = @Storage("autosave.xml"))
+public class AutoSaveSettings implements PersistentStateComponent<AutoSaveSettings.State> {
+    public static class State {
+        public String compressionCodec = ObjectCodec.DEFLATE.name;
+        public int compressionLevel = 6; // 1最快，9压缩率最高
+        public int maxDeltaChainDepth = 10; // 读取一个差分object最多需要还原的基准数，0表示不使用差分
+        public boolean chunkLargeFiles = true; // 大文件按内容切块保存
+        public boolean useGitIgnore = true; // 跳过.gitignore匹配的路径
+        public String ignoredPatterns = ".git/;.gradle/;node_modules/;.idea/workspace.xml;.idea/shelf/"; // 额外的gitignore格式规则，以;分隔
+        public String ignoredExtensions = "class;jar;war;ear;zip;7z;iso;exe;dll;so;dylib;o;obj;pyc"; // 跳过的扩展名，以;分隔
+        public int maxFileSizeKb = 50 * 1024; // 超过这个大小的文件不保存
+        public boolean retentionEnabled = true; // 按分级保留策略删除过期的自动版本
+        public int keepAllMinutes = 60; // 这段时间内的版本全部保留
+        public int keepHourlyHours = 24; // 再往前每小时保留一个
+        public int keepDailyDays = 30; // 再往前每天保留一个，更早的自动版本删除
+        public int storageQuotaMb = 2048; // 每个项目.autosave目录的大小上限，超过后在后台压缩，0表示不限制
+    }
+
+    static final int MAX_DELTA_CHAIN_DEPTH = 100;
+
+    private State state = new State();
+
+    public static AutoSaveSettings getInstance() {
+        return ApplicationManager.getApplication().getService(AutoSaveSettings.class);
+    }
+
+    @Override
+    public @NotNull State getState() {
+        return state;
+    }
+
+    @Override
+    public void loadState(@NotNull State state) {
+        this.state = state;
+    }
+
+    ObjectCodec getCodec() {
+        return ObjectCodec.byName(state.compressionCodec);
+    }
+
+    int getCompressionLevel() {
+        return Math.max(1, Math.min(9, state.compressionLevel));
+    }
+
+    int getMaxDeltaChainDepth() {
+        return Math.max(0, Math.min(MAX_DELTA_CHAIN_DEPTH, state.maxDeltaChainDepth));
+    }
+
+    boolean isChunkLargeFiles() {
+        return state.chunkLargeFiles;
+    }
+
+    long getMaxFileSize() {
+        return state.maxFileSizeKb <= 0 ? Long.MAX_VALUE : state.maxFileSizeKb * 1024L;
+    }
+}
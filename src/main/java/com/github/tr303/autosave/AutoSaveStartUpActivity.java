@@ -34,11 +34,6 @@ public class AutoSaveStartUpActivity implements ProjectActivity {
                     ProcessBuilder processBuilder = new ProcessBuilder("cmd.exe", "/c", command);
                     processBuilder.start();
 
-                    VfsUtil.createDirectoryIfMissing(autosaveDir, "objects");
-                    VirtualFile versionsFile = autosaveDir.findChild("VERSIONS");
-                    if (versionsFile == null) autosaveDir.createChildData(this, "VERSIONS");
-                    VirtualFile referencesFile = autosaveDir.findChild("REFERENCES");
-                    if (referencesFile == null) autosaveDir.createChildData(this, "REFERENCES");
 
                     FileTypeManager fileTypeManager = FileTypeManager.getInstance();
                     String ignoredFilesList = fileTypeManager.getIgnoredFilesList();
@@ -54,6 +49,21 @@ public class AutoSaveStartUpActivity implements ProjectActivity {
                 throw new RuntimeException(e);
             }
         });
+
+        // 从项目打开起记录文件变化，供增量保存使用
+        project.getService(DirtyPathTracker.class);
+
+        // 后台把旧版本的松散object搬进pack
+        ApplicationManager.getApplication().executeOnPooledThread(() -> project.getService(PackStore.class).repackLooseObjects());
+
+        // 为建立内容索引之前保存的版本补建索引
+        project.getService(TrigramIndex.class).scheduleBackfill();
+
+        // 稍后在后台回收无人引用的object
+        project.getService(ObjectCollector.class).scheduleCollection(ObjectCollector.STARTUP_DELAY_SECONDS);
+
+        // 上次关闭前超过磁盘配额的项目在后台压缩
+        project.getService(StorageQuota.class).scheduleCheck();
         return Unit.INSTANCE;
     }
 }
\ No newline at end of file
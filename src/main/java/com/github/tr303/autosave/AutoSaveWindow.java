@@ -1,12 +1,22 @@
 package com.github.tr303.autosave;
 
+import com.intellij.diff.DiffContentFactory;
+import com.intellij.diff.DiffManager;
+import com.intellij.diff.contents.DiffContent;
+import com.intellij.diff.requests.SimpleDiffRequest;
 import com.intellij.icons.AllIcons;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.DialogWrapper;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.ui.JBColor;
+import com.intellij.ui.components.JBList;
 import com.intellij.ui.components.JBScrollPane;
 import com.intellij.ui.treeStructure.Tree;
 import com.intellij.openapi.fileTypes.FileType;
@@ -15,32 +25,54 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
+import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
 import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreePath;
 import javax.swing.event.TreeSelectionEvent;
 import javax.swing.event.TreeSelectionListener;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeWillExpandListener;
 import java.awt.*;
 import java.util.ArrayList;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 
 // 插件界面窗体
 public class AutoSaveWindow extends DialogWrapper {
+    private final Project project;
     private AutoSaveFunctional ASF;
     private VersionPanel versionPanel;
     private TreePanel treePanel;
     private TextPanel textPanel;
     private String selectedVersionHash;
+    private int contentGeneration = 0; // 每次请求显示文件内容时加一，丢弃晚到的旧结果
+    private final String historyPath; // 查看单个文件的历史时为文件的相对路径，否则为null
 
     public AutoSaveWindow(Project project) {
+        this(project, null);
+    }
+
+    // historyPath不为null时只列出这个文件发生变化的版本
+    public AutoSaveWindow(Project project, String historyPath) {
         super(project);
+        this.project = project;
         ASF = new AutoSaveFunctional(project);
-        setTitle("AutoSave");
+        this.historyPath = historyPath;
+        setTitle(historyPath == null ? "AutoSave" : "AutoSave History: " + historyPath);
         setModal(false);
         setSize(1000, 700);
         init();
@@ -58,14 +90,14 @@ public class AutoSaveWindow extends DialogWrapper {
 
         //上下两层：上层三栏，下层放操作按钮
         FunctionPanel functionPanel = new FunctionPanel();
-        ActionPanel actionPanel = new ActionPanel(this::onRenameAction, this::onDeleteAction, this::onRevertAction); // 添加删除和插入按钮事件
+        ActionPanel actionPanel = new ActionPanel(this::onRenameAction, this::onDeleteAction, this::onRevertAction, this::onCompareAction); // 添加删除和插入按钮事件
         mainPanel.add(functionPanel, BorderLayout.NORTH);
         mainPanel.add(actionPanel, BorderLayout.SOUTH);
 
         //上层三栏
         VersionAndSearchPanel versionAndSearchPanel = new VersionAndSearchPanel();//搜索和版本列表
         textPanel = new TextPanel(); // 初始化TextPanel
-        treePanel = new TreePanel(this::onFileSelected); // 当选中文件时调用回调
+        treePanel = new TreePanel(ASF, this::onFileSelected, this::onRestoreAction); // 当选中文件时调用回调
         functionPanel.add(versionAndSearchPanel, BorderLayout.WEST);
         functionPanel.add(treePanel, BorderLayout.CENTER);
         functionPanel.add(textPanel, BorderLayout.EAST);
@@ -75,6 +107,8 @@ public class AutoSaveWindow extends DialogWrapper {
         versionAndSearchPanel.add(searchPanel, BorderLayout.NORTH);
         versionAndSearchPanel.add(versionPanel, BorderLayout.SOUTH);
 
+        if (historyPath != null) loadFileHistory();
+
         return mainPanel;
     }
 
@@ -85,15 +119,17 @@ public class AutoSaveWindow extends DialogWrapper {
             return;
         }
 
-        boolean success = ASF.deleteVersion(selectedVersionHash);
-        if (success) {
-            JOptionPane.showMessageDialog(null, "Delete Successful！");
-            versionPanel.refresh(ASF.getVersionList());
-            treePanel.refresh();
-            textPanel.refresh();
-        } else {
-            JOptionPane.showMessageDialog(null, "Fail，can't detect the version selected");
-        }
+        String versionHash = selectedVersionHash;
+        runInBackground("Deleting version", () -> ASF.deleteVersion(versionHash), success -> {
+            if (Boolean.TRUE.equals(success)) {
+                JOptionPane.showMessageDialog(null, "Delete Successful！");
+                refreshVersionList();
+                treePanel.refresh();
+                textPanel.refresh();
+            } else {
+                JOptionPane.showMessageDialog(null, "Fail，can't detect the version selected");
+            }
+        });
     }
 
     // 回溯按钮的事件处理
@@ -103,13 +139,15 @@ public class AutoSaveWindow extends DialogWrapper {
             return;
         }
 
-        boolean success = ASF.revertToVersion(selectedVersionHash);
-        if (success) {
-            JOptionPane.showMessageDialog(null, "Revert Successful！");
-            versionPanel.refresh(ASF.getVersionList());
-        } else {
-            JOptionPane.showMessageDialog(null, "Fail，can't detect the version selected");
-        }
+        String versionHash = selectedVersionHash;
+        runInBackground("Reverting to version", () -> ASF.revertToVersion(versionHash), success -> {
+            if (Boolean.TRUE.equals(success)) {
+                JOptionPane.showMessageDialog(null, "Revert Successful！");
+                refreshVersionList();
+            } else {
+                JOptionPane.showMessageDialog(null, "Fail，can't detect the version selected");
+            }
+        });
     }
 
     // 重命名按钮的事件处理
@@ -119,35 +157,24 @@ public class AutoSaveWindow extends DialogWrapper {
             return;
         }
 
-        String oldTag = "";
-        // 获取所有版本信息
-        ArrayList<AutoSaveFunctional.VersionInfo> versionList = ASF.getVersionList();
-        AutoSaveFunctional.VersionInfo selectedVersion = null;
-        // 遍历版本列表，查找与哈希匹配的版本
-        for (AutoSaveFunctional.VersionInfo version : versionList) {
-            if (version.rootObject.equals(selectedVersionHash)) {
-                oldTag = version.tag;
-                selectedVersion = version;
-                break;
-            }
-        }
+        // 按哈希查找选中的版本
+        AutoSaveFunctional.VersionInfo selectedVersion = ASF.getVersion(selectedVersionHash);
         if (selectedVersion == null) {
             JOptionPane.showMessageDialog(null, "Version not found.");
             return;
         }
+        String oldTag = selectedVersion.tag;
 
         // 弹出输入框，提示用户输入新的版本名称
         String newTag = JOptionPane.showInputDialog(null, "Enter new version name:", oldTag);
         // 如果用户输入了有效的新名称
         if (newTag != null && !newTag.trim().isEmpty()) {
-            // 更新版本的 tag
-            selectedVersion.tag = newTag.trim();
-            // 保存更新后的版本列表
-            boolean success = ASF.saveVersionList(versionList);
+            // 更新版本的 tag，只改写版本日志中的这一条记录
+            Boolean success = ASF.renameVersion(selectedVersionHash, newTag.trim());
 
-            if (success) {
+            if (Boolean.TRUE.equals(success)) {
                 JOptionPane.showMessageDialog(null, "Rename Successful！");
-                versionPanel.refresh(ASF.getVersionList());
+                refreshVersionList();
             } else {
                 JOptionPane.showMessageDialog(null, "Failed to save the renamed version.");
             }
@@ -157,21 +184,124 @@ public class AutoSaveWindow extends DialogWrapper {
     }
 
 
+    // 树节点右键菜单"恢复"的事件处理：只把这个文件或目录写回工作区，版本历史保持不变
+    private void onRestoreAction(AutoSaveFunctional.CustomTreeNode node) {
+        if (selectedVersionHash == null) return;
+        String path = node.getRelativePath();
+        String target = path.isEmpty() ? "the whole project" : path;
+        int choice = JOptionPane.showConfirmDialog(null, "Restore " + target + " from this version? Existing files will be overwritten.",
+                "Restore", JOptionPane.OK_CANCEL_OPTION);
+        if (choice != JOptionPane.OK_OPTION) return;
+
+        String versionHash = selectedVersionHash;
+        runInBackground("Restoring " + target, () -> ASF.restorePath(versionHash, node), success -> {
+            if (Boolean.TRUE.equals(success)) {
+                JOptionPane.showMessageDialog(null, "Restore Successful！");
+            } else {
+                JOptionPane.showMessageDialog(null, "Fail，" + target + " does not exist in the version selected");
+            }
+        });
+    }
+
+    // 删除、回溯和恢复与后台的保存和清理互斥，在后台执行，完成后回到界面线程显示结果
+    private void runInBackground(String title, Supplier<Boolean> operation, Consumer<Boolean> onFinished) {
+        new Task.Backgroundable(project, title) {
+            private Boolean result;
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setIndeterminate(true);
+                result = operation.get();
+            }
+
+            @Override
+            public void onSuccess() {
+                onFinished.accept(result);
+            }
+        }.queue();
+    }
+
+    // 比较按钮的事件处理：在IntelliJ的差异查看器中比较选中的文件与上一个版本中的同一文件
+    private void onCompareAction() {
+        AutoSaveFunctional.CustomTreeNode selectedNode = treePanel.getSelectedFile();
+        if (selectedVersionHash == null || selectedNode == null) {
+            JOptionPane.showMessageDialog(null, "Please Choose A File to Compare");
+            return;
+        }
+
+        String path = selectedNode.getRelativePath();
+        String versionHash = selectedVersionHash;
+        // 没有路径索引的旧版本查找时需要遍历整个版本，在后台读取两边的内容
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            AutoSaveFunctional.VersionInfo current = ASF.getVersion(versionHash);
+            AutoSaveFunctional.VersionInfo previous = ASF.getPreviousVersion(versionHash);
+            String before = previous == null ? null : ASF.getFileContentForVersionAndPath(previous.rootObject, path);
+            String after = ASF.getFileContentForVersionAndPath(versionHash, selectedNode);
+            ApplicationManager.getApplication().invokeLater(() -> {
+                // 文件在某一边不存在时显示为空白
+                DiffContentFactory contentFactory = DiffContentFactory.getInstance();
+                FileType fileType = FileTypeManager.getInstance().getFileTypeByFileName(selectedNode.getName());
+                DiffContent beforeContent = before == null ? contentFactory.createEmpty() : contentFactory.create(project, before, fileType);
+                DiffContent afterContent = after == null ? contentFactory.createEmpty() : contentFactory.create(project, after, fileType);
+                DiffManager.getInstance().showDiff(project, new SimpleDiffRequest(path, beforeContent, afterContent,
+                        previous == null ? "(no previous version)" : previous.tag, current == null ? "" : current.tag));
+            }, ModalityState.any());
+        });
+    }
+
+    // 版本被修改后重新载入列表；查看文件历史时重新计算这个文件的变化点
+    private void refreshVersionList() {
+        if (historyPath != null) loadFileHistory();
+        else versionPanel.refresh(ASF.getVersionList());
+    }
+
+    // 在后台计算文件历史，列表中只显示文件发生变化的版本，并标明是添加、修改还是删除
+    private void loadFileHistory() {
+        versionPanel.refresh(new ArrayList<>());
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            ArrayList<AutoSaveFunctional.FileChange> changes = ASF.getFileHistory(historyPath);
+            ArrayList<AutoSaveFunctional.VersionInfo> versions = new ArrayList<>();
+            HashMap<AutoSaveFunctional.VersionInfo, ArrayList<String>> labels = new HashMap<>();
+            for (AutoSaveFunctional.FileChange change : changes) {
+                versions.add(change.version);
+                String kind = change.kind.name().charAt(0) + change.kind.name().substring(1).toLowerCase();
+                labels.put(change.version, new ArrayList<>(List.of(kind + ": " + historyPath)));
+            }
+            ApplicationManager.getApplication().invokeLater(() -> versionPanel.refresh(versions, labels), ModalityState.any());
+        });
+    }
+
     // 更新TreePanel中显示的树结构
     private void updateTreePanel(String versionHash) {
         this.selectedVersionHash = versionHash; // 存储选中的版本哈希
-        AutoSaveFunctional.CustomTreeNode rootNode = ASF.getTreeNodeByVersionHash(versionHash);
-        treePanel.setTree(rootNode); // 更新TreePanel的树结构
+        treePanel.setVersion(versionHash); // 更新TreePanel的树结构，目录在展开时才读取
+        if (historyPath != null) {
+            // 查看文件历史时直接显示这个版本中的文件内容
+            String fileName = historyPath.substring(historyPath.lastIndexOf('/') + 1);
+            showFileContent(() -> ASF.getFileContentForVersionAndPath(versionHash, historyPath), fileName);
+        }
     }
 
     // 当文件被选中时，加载并显示文件内容
     private void onFileSelected(AutoSaveFunctional.CustomTreeNode selectedNode) {
         if (selectedVersionHash != null) {
-            String fileName = selectedNode.getName();
-            String fileContent = ASF.getFileContentForVersionAndPath(selectedVersionHash, selectedNode); // 获取文件内容
-            textPanel.setFileContent(fileContent, fileName); // 显示文件内容
+            String versionHash = selectedVersionHash;
+            // 获取文件内容，已删除的文件为null
+            showFileContent(() -> ASF.getFileContentForVersionAndPath(versionHash, selectedNode), selectedNode.getName());
         }
     }
+
+    // 在后台读取文件内容后显示；路径查找可能需要为旧版本建立路径索引，不在界面线程中进行
+    private void showFileContent(Supplier<String> loader, String fileName) {
+        int current = ++contentGeneration;
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            String fileContent = loader.get();
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (current != contentGeneration) return; // 已经选中了别的版本或文件
+                textPanel.setFileContent(fileContent == null ? "" : fileContent, fileName);
+            }, ModalityState.any());
+        });
+    }
 }
 
 //上层面板
@@ -190,10 +320,15 @@ class VersionAndSearchPanel extends JPanel {
     }
 }
 
-//左上面板：根据tag搜索版本
+//左上面板：根据tag或文件内容搜索版本
 class SearchPanel extends JPanel {
+    private static final String BY_TAG = "Tag";
+    private static final String BY_CONTENT = "Content";
+    private static final String BY_REGEX = "Regex";
+
     private JTextField searchField;  // 输入框
     private JButton searchButton;    // 搜索按钮
+    private JComboBox<String> modeBox; // 搜索方式
     private AutoSaveFunctional ASF;  // 保存 ASF 以供搜索使用
     private VersionPanel versionPanel; // 用于更新版本列表的引用
 
@@ -204,6 +339,11 @@ class SearchPanel extends JPanel {
         setPreferredSize(new Dimension(200, 30));
         setLayout(new BorderLayout());
 
+        // 创建搜索方式选择框
+        modeBox = new JComboBox<>(new String[]{BY_TAG, BY_CONTENT, BY_REGEX});
+        modeBox.setToolTipText("Search version tags, file contents, or file contents by regular expression");
+        add(modeBox, BorderLayout.WEST);
+
         // 创建输入框
         searchField = new JTextField();
         add(searchField, BorderLayout.CENTER);
@@ -214,6 +354,7 @@ class SearchPanel extends JPanel {
 
         // 设置按钮点击事件处理
         searchButton.addActionListener(e -> onSearchAction());
+        searchField.addActionListener(e -> onSearchAction());
     }
 
     // 搜索逻辑
@@ -223,11 +364,41 @@ class SearchPanel extends JPanel {
         if (searchQuery.isEmpty()) {
             // 如果搜索框为空，显示所有版本
             versionPanel.refresh(ASF.getVersionList());
-        } else {
+        } else if (BY_TAG.equals(modeBox.getSelectedItem())) {
             // 根据 tag 搜索版本
             ArrayList<AutoSaveFunctional.VersionInfo> searchResults = searchVersionsByTag(searchQuery);
             versionPanel.refresh(searchResults); // 更新版本列表
+        } else {
+            searchFileContents(searchQuery, BY_REGEX.equals(modeBox.getSelectedItem()));
+        }
+    }
+
+    // 在后台搜索所有版本的文件内容，完成后只列出含有匹配文件的版本
+    private void searchFileContents(String query, boolean isRegex) {
+        if (isRegex) {
+            try {
+                Pattern.compile(query);
+            } catch (PatternSyntaxException e) {
+                JOptionPane.showMessageDialog(null, "Invalid regular expression: " + e.getDescription());
+                return;
+            }
         }
+        searchButton.setEnabled(false);
+        searchButton.setText("...");
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            ArrayList<AutoSaveFunctional.SearchResult> results = ASF.searchFileContents(query, isRegex);
+            ArrayList<AutoSaveFunctional.VersionInfo> versions = new ArrayList<>();
+            HashMap<AutoSaveFunctional.VersionInfo, ArrayList<String>> matches = new HashMap<>();
+            for (AutoSaveFunctional.SearchResult result : results) {
+                versions.add(result.version);
+                matches.put(result.version, result.paths);
+            }
+            ApplicationManager.getApplication().invokeLater(() -> {
+                searchButton.setEnabled(true);
+                searchButton.setText("Search");
+                versionPanel.refresh(versions, matches);
+            }, ModalityState.any());
+        });
     }
 
     // 根据 tag 搜索版本
@@ -246,190 +417,367 @@ class SearchPanel extends JPanel {
 }
 
 // 左下面板，用于显示版本列表
+// 列表只保存版本信息本身，由同一个渲染器绘制可见的行，几万个版本也只创建可见行所需的组件
 class VersionPanel extends JPanel {
-    private ArrayList<VersionItem> items = new ArrayList<>();
+    private final VersionListModel model = new VersionListModel();
+    private final JBList<AutoSaveFunctional.VersionInfo> list = new JBList<>(model);
     private Consumer<String> onVersionSelected; // 回调，用于通知AutoSaveWindow版本被选中
+    private boolean restoringSelection = false; // 刷新后恢复选中项时不重复通知
+    private int hoveredIndex = -1;
+    private Map<AutoSaveFunctional.VersionInfo, ArrayList<String>> matchedPaths = Collections.emptyMap(); // 内容搜索时每个版本中匹配的文件
 
     public VersionPanel(AutoSaveFunctional ASF, Consumer<String> onVersionSelected) {
         this.onVersionSelected = onVersionSelected; // 设置回调
         setPreferredSize(new Dimension(200, 570));
         setLayout(new BorderLayout()); // 使用 BorderLayout
 
-        JPanel itemContainer = new JPanel();
-        itemContainer.setLayout(new BoxLayout(itemContainer, BoxLayout.Y_AXIS)); // 纵向排列
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setCellRenderer(new VersionCellRenderer());
+        list.setFixedCellHeight(VersionCellRenderer.ROW_HEIGHT); // 行高固定，滚动和布局不需要逐行测量
+        list.setFixedCellWidth(190);
+
+        // 选中某个版本，直接由选中的行取得版本信息
+        list.addListSelectionListener(e -> {
+            if (e.getValueIsAdjusting() || restoringSelection) return;
+            AutoSaveFunctional.VersionInfo selected = list.getSelectedValue();
+            // 通知AutoSaveWindow更新中间栏
+            if (selected != null && onVersionSelected != null) onVersionSelected.accept(selected.rootObject);
+        });
+
+        // 鼠标悬停时高亮所在的行
+        MouseAdapter hoverListener = new MouseAdapter() {
+            @Override
+            public void mouseMoved(MouseEvent e) {
+                int index = list.locationToIndex(e.getPoint());
+                if (index >= 0 && !list.getCellBounds(index, index).contains(e.getPoint())) index = -1;
+                setHoveredIndex(index);
+            }
+
+            @Override
+            public void mouseExited(MouseEvent e) {
+                setHoveredIndex(-1);
+            }
+        };
+        list.addMouseListener(hoverListener);
+        list.addMouseMotionListener(hoverListener);
 
         // 从 ASF 中获取所有版本信息并渲染
-        ArrayList<AutoSaveFunctional.VersionInfo> versionList = ASF.getVersionList();
-        for (AutoSaveFunctional.VersionInfo versionInfo : versionList) {
-            Date versionDate = parseDate(versionInfo.timestamp); // 解析时间戳
-            VersionItem item = new VersionItem(versionInfo.tag, versionDate, this, versionInfo.rootObject);
-            items.add(item);
-            itemContainer.add(item);
-        }
+        model.setVersions(ASF.getVersionList());
 
-        JBScrollPane scrollPane = new JBScrollPane(itemContainer);
+        JBScrollPane scrollPane = new JBScrollPane(list);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         add(scrollPane, BorderLayout.CENTER);
     }
 
-    // 将字符串时间戳解析为Date对象
-    private Date parseDate(String timestamp) {
-        // 使用DateTimeFormatter来解析字符串时间戳
-        try {
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH-mm-ss");
-            LocalDateTime dateTime = LocalDateTime.parse(timestamp, formatter);
-            return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
-        } catch (Exception e) {
-            return new Date(); // 如果解析失败，返回当前时间（但最好处理错误情况）
-        }
+    private void setHoveredIndex(int index) {
+        if (index == hoveredIndex) return;
+        repaintRow(hoveredIndex);
+        hoveredIndex = index;
+        repaintRow(hoveredIndex);
     }
 
-    // 选中某个版本
-    public void itemClicked(VersionItem clickedItem) {
-        for (VersionItem item : items) {
-            if (item != clickedItem) {
-                item.mark(false); // 取消标记其他项
-            }
-        }
-        clickedItem.mark(true); // 标记被点击的项
-        // 通知AutoSaveWindow更新中间栏
-        if (onVersionSelected != null) {
-            onVersionSelected.accept(clickedItem.getVersionHash()); // 传递选中的版本哈希
-        }
+    private void repaintRow(int index) {
+        if (index < 0 || index >= model.getSize()) return;
+        Rectangle bounds = list.getCellBounds(index, index);
+        if (bounds != null) list.repaint(bounds);
     }
 
-    //刷新版本列表
+    //刷新版本列表，之前选中的版本仍在列表中时保持选中
     public void refresh(ArrayList<AutoSaveFunctional.VersionInfo> versionList) {
-        removeAll(); // 清空当前面板的内容
+        refresh(versionList, Collections.emptyMap());
+    }
 
-        setLayout(new BorderLayout()); // 使用 BorderLayout
-        JPanel itemContainer = new JPanel();
-        itemContainer.setLayout(new BoxLayout(itemContainer, BoxLayout.Y_AXIS)); // 纵向排列
-        for (AutoSaveFunctional.VersionInfo versionInfo : versionList) {
-            Date versionDate = parseDate(versionInfo.timestamp); // 解析时间戳
-            VersionItem item = new VersionItem(versionInfo.tag, versionDate, this, versionInfo.rootObject);
-            items.add(item); // 添加到列表中
-            itemContainer.add(item);
+    // 显示内容搜索的结果，每个版本下方显示其中匹配的文件
+    public void refresh(ArrayList<AutoSaveFunctional.VersionInfo> versionList, Map<AutoSaveFunctional.VersionInfo, ArrayList<String>> matches) {
+        AutoSaveFunctional.VersionInfo selected = list.getSelectedValue();
+        matchedPaths = matches;
+        hoveredIndex = -1;
+        restoringSelection = true;
+        try {
+            list.clearSelection();
+            model.setVersions(versionList);
+            if (selected != null) {
+                int index = model.indexOf(selected.rootObject);
+                if (index >= 0) list.setSelectedIndex(index);
+            }
+        } finally {
+            restoringSelection = false;
         }
-        JBScrollPane scrollPane = new JBScrollPane(itemContainer);
-        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
-        add(scrollPane, BorderLayout.CENTER);
-
-        revalidate(); // 重新布局
-        repaint();    // 重新绘制
     }
 
-}
-
-//左下面板的item
-class VersionItem extends JPanel {
-    public boolean isSelected;
-    private VersionPanel parentPanel; // 引用父面板
-    private String versionHash;       // 版本的唯一标识
-
-    public VersionItem(String name, Date date, VersionPanel parentPanel, String versionHash) {
-        this.parentPanel = parentPanel; // 初始化父面板
-        this.versionHash = versionHash; // 初始化版本哈希
-        isSelected = false;
-
-        // 设置固定大小为200x80
-        setPreferredSize(new Dimension(190, 80));
-        setMaximumSize(new Dimension(190, 80));
-        setMinimumSize(new Dimension(190, 80));
+    // 版本列表的数据模型，直接引用传入的列表，不为每个版本创建额外对象
+    private static class VersionListModel extends AbstractListModel<AutoSaveFunctional.VersionInfo> {
+        private List<AutoSaveFunctional.VersionInfo> versions = new ArrayList<>();
 
-        // 保证背景填充色生效
-        setOpaque(true);
-
-        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        void setVersions(List<AutoSaveFunctional.VersionInfo> newVersions) {
+            int oldSize = versions.size();
+            versions = newVersions;
+            if (oldSize > 0) fireIntervalRemoved(this, 0, oldSize - 1);
+            if (!versions.isEmpty()) fireIntervalAdded(this, 0, versions.size() - 1);
+        }
 
-        JLabel nameLabel = new JLabel(name);
-        nameLabel.setFont(nameLabel.getFont().deriveFont(12f));
-        nameLabel.setHorizontalAlignment(SwingConstants.LEFT);
-        add(nameLabel);
+        int indexOf(String rootHash) {
+            for (int i = 0; i < versions.size(); i++)
+                if (versions.get(i).rootObject.equals(rootHash)) return i;
+            return -1;
+        }
 
-        JLabel timeLabel = new JLabel(date.toString());
-        timeLabel.setFont(nameLabel.getFont().deriveFont(10f));
-        timeLabel.setForeground(JBColor.blue);
-        timeLabel.setHorizontalAlignment(SwingConstants.LEFT);
-        add(timeLabel);
+        @Override
+        public int getSize() {
+            return versions.size();
+        }
 
-        setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+        @Override
+        public AutoSaveFunctional.VersionInfo getElementAt(int index) {
+            return versions.get(index);
+        }
+    }
 
-        // 添加鼠标监听器
-        addMouseListener(new MouseAdapter() {
-            @Override
-            public void mouseEntered(MouseEvent e) {
-                if (!isSelected)
-                    setBackground(JBColor.gray);
+    // 版本行的渲染器：两个标签在所有行之间复用，只在绘制可见行时解析时间戳
+    private class VersionCellRenderer extends JPanel implements ListCellRenderer<AutoSaveFunctional.VersionInfo> {
+        static final int ROW_HEIGHT = 80;
+        private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH-mm-ss");
+        private final JLabel nameLabel = new JLabel();
+        private final JLabel timeLabel = new JLabel();
+        private final JLabel matchLabel = new JLabel();
+
+        VersionCellRenderer() {
+            // 保证背景填充色生效
+            setOpaque(true);
+            setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+
+            nameLabel.setFont(nameLabel.getFont().deriveFont(12f));
+            nameLabel.setHorizontalAlignment(SwingConstants.LEFT);
+            add(nameLabel);
+
+            timeLabel.setFont(nameLabel.getFont().deriveFont(10f));
+            timeLabel.setForeground(JBColor.blue);
+            timeLabel.setHorizontalAlignment(SwingConstants.LEFT);
+            add(timeLabel);
+
+            matchLabel.setFont(nameLabel.getFont().deriveFont(10f));
+            matchLabel.setHorizontalAlignment(SwingConstants.LEFT);
+            add(matchLabel);
+
+            setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+        }
 
-                // 设置鼠标悬停显示版本的tag
-                setToolTipText("Version tag: " + name);
+        @Override
+        public Component getListCellRendererComponent(JList<? extends AutoSaveFunctional.VersionInfo> list, AutoSaveFunctional.VersionInfo value,
+                                                      int index, boolean isSelected, boolean cellHasFocus) {
+            nameLabel.setText(value.tag);
+            timeLabel.setText(parseDate(value.timestamp).toString());
+            // 设置鼠标悬停显示版本的tag，内容搜索时还显示匹配的文件
+            ArrayList<String> paths = matchedPaths.get(value);
+            if (paths == null || paths.isEmpty()) {
+                matchLabel.setVisible(false);
+                setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+                setToolTipText("Version tag: " + value.tag);
+            } else {
+                matchLabel.setText(paths.get(0) + (paths.size() > 1 ? " (+" + (paths.size() - 1) + ")" : ""));
+                matchLabel.setVisible(true);
+                setBorder(BorderFactory.createEmptyBorder(10, 20, 10, 20));
+                setToolTipText("<html>Version tag: " + StringUtil.escapeXmlEntities(value.tag) + "<br>"
+                        + paths.stream().limit(20).map(StringUtil::escapeXmlEntities).collect(Collectors.joining("<br>"))
+                        + (paths.size() > 20 ? "<br>..." : "") + "</html>");
             }
 
-            @Override
-            public void mouseExited(MouseEvent e) {
-                if (!isSelected)
-                    setBackground(UIManager.getColor("Panel.background"));
-            }
+            if (isSelected) setBackground(JBColor.cyan);
+            else if (index == hoveredIndex) setBackground(JBColor.gray);
+            else setBackground(UIManager.getColor("Panel.background"));
+            return this;
+        }
 
-            @Override
-            public void mouseClicked(MouseEvent e) {
-                parentPanel.itemClicked(VersionItem.this); // 通知父面板该项被点击
+        // 将字符串时间戳解析为Date对象
+        private Date parseDate(String timestamp) {
+            try {
+                LocalDateTime dateTime = LocalDateTime.parse(timestamp, FORMATTER);
+                return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+            } catch (Exception e) {
+                return new Date(); // 如果解析失败，返回当前时间（但最好处理错误情况）
             }
-        });
-    }
-
-    public String getVersionHash() {
-        return versionHash; // 返回该版本的唯一标识
-    }
-
-    public void mark(boolean selected) {
-        if (selected) {
-            setBackground(JBColor.cyan);
-        } else {
-            setBackground(UIManager.getColor("Panel.background"));
         }
-        revalidate();
-        repaint();
-        isSelected = selected;
     }
 }
 
 // 中间面板，用于显示项目树结构
+// 目录节点第一次展开时才在后台线程读取它的目录object，读取期间显示一个占位子节点
+// 勾选"只显示变化的文件"时改为显示与上一个版本比较后添加、修改和删除的文件
 class TreePanel extends JPanel {
+    private static final String LOADING = "Loading...";
+    private final AutoSaveFunctional ASF;
+    private final JCheckBox changedOnlyBox = new JCheckBox("Changed files only");
+    private String versionHash; // 当前显示的版本
     private Tree tree;
+    private DefaultTreeModel model = new DefaultTreeModel(null);
+    private int generation = 0; // 每次切换版本时加一，丢弃上一个版本还没完成的读取结果
     private Consumer<AutoSaveFunctional.CustomTreeNode> onFileSelected; // 回调接口
 
-    public TreePanel(Consumer<AutoSaveFunctional.CustomTreeNode> onFileSelected) {
+    public TreePanel(AutoSaveFunctional ASF, Consumer<AutoSaveFunctional.CustomTreeNode> onFileSelected,
+                     Consumer<AutoSaveFunctional.CustomTreeNode> onRestore) {
+        this.ASF = ASF;
         this.onFileSelected = onFileSelected; // 初始化回调接口
         setPreferredSize(new Dimension(250, 600));
         setLayout(new BorderLayout());
 
-        tree = new Tree();
+        tree = new Tree(model);
+        tree.setCellRenderer(new ChangeCellRenderer());
         JBScrollPane scrollPane = new JBScrollPane(tree);
         add(scrollPane, BorderLayout.CENTER);
 
+        // 切换显示方式后重新载入当前版本
+        changedOnlyBox.setToolTipText("Show only the files added, modified or deleted since the previous version");
+        changedOnlyBox.addActionListener(e -> {
+            if (versionHash != null) setVersion(versionHash);
+        });
+        add(changedOnlyBox, BorderLayout.NORTH);
+
+        // 右键菜单：恢复点击的文件或目录
+        tree.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                showRestoreMenu(e);
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                showRestoreMenu(e);
+            }
+
+            private void showRestoreMenu(MouseEvent e) {
+                if (!e.isPopupTrigger()) return;
+                TreePath path = tree.getPathForLocation(e.getX(), e.getY());
+                if (path == null || !(path.getLastPathComponent() instanceof AutoSaveFunctional.CustomTreeNode)) return;
+                AutoSaveFunctional.CustomTreeNode node = (AutoSaveFunctional.CustomTreeNode) path.getLastPathComponent();
+                tree.setSelectionPath(path);
+                JPopupMenu menu = new JPopupMenu();
+                JMenuItem restoreItem = new JMenuItem(node.isDirectory() ? "Restore This Folder" : "Restore This File");
+                restoreItem.addActionListener(event -> onRestore.accept(node));
+                menu.add(restoreItem);
+                menu.show(tree, e.getX(), e.getY());
+            }
+        });
+
+        // 展开尚未加载的目录节点时读取它的子节点
+        tree.addTreeWillExpandListener(new TreeWillExpandListener() {
+            @Override
+            public void treeWillExpand(TreeExpansionEvent e) {
+                Object node = e.getPath().getLastPathComponent();
+                if (node instanceof AutoSaveFunctional.CustomTreeNode) loadChildren((AutoSaveFunctional.CustomTreeNode) node);
+            }
+
+            @Override
+            public void treeWillCollapse(TreeExpansionEvent e) {
+            }
+        });
+
         // 添加树节点选择监听器
         tree.addTreeSelectionListener(new TreeSelectionListener() {
             @Override
             public void valueChanged(TreeSelectionEvent e) {
-                // 获取选中的节点
-                AutoSaveFunctional.CustomTreeNode selectedNode = (AutoSaveFunctional.CustomTreeNode) tree.getLastSelectedPathComponent();
-                if (selectedNode != null && !selectedNode.isDirectory()) {
+                // 获取选中的节点，占位节点不是CustomTreeNode
+                Object selected = tree.getLastSelectedPathComponent();
+                if (selected instanceof AutoSaveFunctional.CustomTreeNode && !((AutoSaveFunctional.CustomTreeNode) selected).isDirectory()) {
                     // 只处理文件节点，调用回调方法
-                    onFileSelected.accept(selectedNode);
+                    onFileSelected.accept((AutoSaveFunctional.CustomTreeNode) selected);
                 }
             }
         });
     }
 
-    public void setTree(AutoSaveFunctional.CustomTreeNode node) {
-        tree.setModel(new DefaultTreeModel(node));
+    // 显示某个版本的目录树：先显示占位节点，在后台读取根目录object后再换上根节点
+    public void setVersion(String versionHash) {
+        this.versionHash = versionHash;
+        int current = ++generation;
+        boolean changedOnly = changedOnlyBox.isSelected();
+        setModel(new DefaultTreeModel(new DefaultMutableTreeNode(LOADING)));
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            // 只显示变化的文件时一次得到完整的变化树，否则只读取根目录
+            AutoSaveFunctional.CustomTreeNode root = changedOnly ? ASF.getChangedTreeNode(versionHash) : ASF.getVersionRootNode(versionHash);
+            ArrayList<AutoSaveFunctional.CustomTreeNode> children = root == null || changedOnly ? null : ASF.getChildNodes(root);
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (current != generation) return;
+                if (root == null) {
+                    setModel(new DefaultTreeModel(new DefaultMutableTreeNode("Version not found")));
+                    return;
+                }
+                if (changedOnly) {
+                    if (root.getChildCount() == 0) root.add(new DefaultMutableTreeNode("No changes"));
+                    setModel(new DefaultTreeModel(root));
+                    for (int row = 0; row < tree.getRowCount(); row++) tree.expandRow(row); // 变化通常不多，全部展开
+                    return;
+                }
+                setChildren(root, children);
+                setModel(new DefaultTreeModel(root));
+            }, ModalityState.any());
+        });
+    }
+
+    // 当前选中的文件节点，没有选中文件时返回null
+    public AutoSaveFunctional.CustomTreeNode getSelectedFile() {
+        Object selected = tree.getLastSelectedPathComponent();
+        if (selected instanceof AutoSaveFunctional.CustomTreeNode && !((AutoSaveFunctional.CustomTreeNode) selected).isDirectory())
+            return (AutoSaveFunctional.CustomTreeNode) selected;
+        return null;
+    }
+
+    // 在后台读取目录节点的子节点，完成后替换掉占位节点
+    private void loadChildren(AutoSaveFunctional.CustomTreeNode node) {
+        if (node.isLoaded()) return;
+        node.setLoaded(true); // 读取期间再次展开不重复读取
+        int current = generation;
+        DefaultTreeModel target = model;
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            ArrayList<AutoSaveFunctional.CustomTreeNode> children = ASF.getChildNodes(node);
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (current != generation) return;
+                setChildren(node, children);
+                target.nodeStructureChanged(node);
+            }, ModalityState.any());
+        });
+    }
+
+    // 换上读到的子节点；未加载的目录节点带一个占位子节点，这样树上会显示展开按钮
+    private void setChildren(AutoSaveFunctional.CustomTreeNode node, ArrayList<AutoSaveFunctional.CustomTreeNode> children) {
+        node.removeAllChildren();
+        if (children == null) {
+            node.add(new DefaultMutableTreeNode("Failed to load directory"));
+        } else {
+            for (AutoSaveFunctional.CustomTreeNode child : children) {
+                if (!child.isLoaded()) child.add(new DefaultMutableTreeNode(LOADING));
+                node.add(child);
+            }
+        }
+        node.setLoaded(true);
+    }
+
+    private void setModel(DefaultTreeModel newModel) {
+        model = newModel;
+        tree.setModel(newModel);
+    }
+
+    // 只显示变化的文件时按变化类型给文件名着色：添加为绿色，修改为蓝色，删除为灰色
+    private static class ChangeCellRenderer extends DefaultTreeCellRenderer {
+        @Override
+        public Component getTreeCellRendererComponent(JTree tree, Object value, boolean sel, boolean expanded, boolean leaf, int row, boolean hasFocus) {
+            super.getTreeCellRendererComponent(tree, value, sel, expanded, leaf, row, hasFocus);
+            if (sel || !(value instanceof AutoSaveFunctional.CustomTreeNode)) return this;
+            AutoSaveFunctional.FileDiff diff = ((AutoSaveFunctional.CustomTreeNode) value).getDiff();
+            if (diff == null) return this;
+            switch (diff.kind) {
+                case ADDED -> setForeground(JBColor.GREEN);
+                case MODIFIED -> setForeground(JBColor.BLUE);
+                case DELETED -> setForeground(JBColor.GRAY);
+            }
+            return this;
+        }
     }
 
     //刷新
     public void refresh() {
-        tree.setModel(new DefaultTreeModel(null));
+        versionHash = null;
+        generation++;
+        setModel(new DefaultTreeModel(null));
     }
 }
 
@@ -508,18 +856,21 @@ class TextPanel extends JPanel {
 
 //操作按钮
 class ActionPanel extends JPanel {
-    public ActionPanel(Runnable renameAction, Runnable deleteAction, Runnable revertAction) {
+    public ActionPanel(Runnable renameAction, Runnable deleteAction, Runnable revertAction, Runnable compareAction) {
         setPreferredSize(new Dimension(1000, 40));
         setLayout(new FlowLayout(FlowLayout.RIGHT));
 
         JButton renameButton = new JButton("Rename");
         JButton revertButton = new JButton("Revert");
         JButton deleteButton = new JButton("Delete");
+        JButton compareButton = new JButton("Compare with Previous");
 
         renameButton.addActionListener(e -> renameAction.run());
         deleteButton.addActionListener(e -> deleteAction.run());
         revertButton.addActionListener(e -> revertAction.run());
+        compareButton.addActionListener(e -> compareAction.run());
 
+        add(compareButton);
         add(renameButton);
         add(revertButton);
         add(deleteButton);
@@ -0,0 +1,42 @@
+package com.github.tr303.autosave;
+
+import java.util.Random;
+
+// FastCDC内容定义分块：切分点只取决于附近的内容，文件中间插入或删除内容后，其余部分切出的块保持不变
+// 在平均块大小之前使用更难满足的掩码、之后使用更容易满足的掩码，使块大小集中在平均值附近
+final class Chunker {
+    static final int MIN_SIZE = 16 << 10;
+    static final int AVG_SIZE = 64 << 10;
+    static final int MAX_SIZE = 256 << 10;
+    private static final long MASK_HARD = -1L << (64 - 18); // 比平均值的16位多两位
+    private static final long MASK_EASY = -1L << (64 - 14); // 比平均值的16位少两位
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // 固定种子，保证任何时候切出的块都相同
+        Random random = new Random(0x4155544F53415645L);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+    }
+
+    private Chunker() {
+    }
+
+    // 返回从offset开始、不超过length字节的数据中第一个块的长度
+    static int nextChunk(byte[] data, int offset, int length) {
+        if (length <= MIN_SIZE) return length;
+        int end = Math.min(length, MAX_SIZE);
+        int normal = Math.min(end, AVG_SIZE);
+
+        long fingerprint = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xff];
+            if ((fingerprint & MASK_HARD) == 0) return i + 1;
+        }
+        for (; i < end; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xff];
+            if ((fingerprint & MASK_EASY) == 0) return i + 1;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.tr303.autosave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// 二进制差分：把一个object表示为对基准object的复制和插入操作
+// 格式：基准长度 | 目标长度 | 操作序列，长度均为varint
+// 操作：0x00后跟varint偏移和varint长度表示从基准复制；0x01-0x7F表示插入随后的这么多字节
+final class Delta {
+    private static final int BLOCK_SIZE = 16; // 基准按这个粒度建立索引，更短的相同片段不会被复制
+    private static final int MAX_INSERT = 0x7F;
+    private static final int MAX_PROBES = 16; // 每个位置最多比较的候选块数
+    private static final int PRIME = 0x01000193;
+    private static final int PRIME_POWER; // PRIME的BLOCK_SIZE-1次方，滚动哈希移出最早的字节时使用
+
+    static {
+        int power = 1;
+        for (int i = 1; i < BLOCK_SIZE; i++) power *= PRIME;
+        PRIME_POWER = power;
+    }
+
+    private Delta() {
+    }
+
+    // 计算从base到target的差分
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, target.length / 8));
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        // 以不重叠的块为单位索引基准，哈希表中保存块的起始偏移+1，0表示空位
+        int blocks = base.length / BLOCK_SIZE;
+        int[] table = new int[Integer.highestOneBit(Math.max(1, blocks) * 2) * 2];
+        int mask = table.length - 1;
+        // 从后往前插入，内容相同的块只保留最靠前的一个，避免重复内容使探测链变长
+        for (int i = (blocks - 1) * BLOCK_SIZE; i >= 0; i -= BLOCK_SIZE) {
+            int slot = mix(hash(base, i)) & mask;
+            while (table[slot] != 0 && !Arrays.equals(base, table[slot] - 1, table[slot] - 1 + BLOCK_SIZE, base, i, i + BLOCK_SIZE))
+                slot = (slot + 1) & mask;
+            table[slot] = i + 1;
+        }
+
+        int insertStart = 0; // 尚未输出的插入内容起点
+        int position = 0;
+        int rolling = target.length >= BLOCK_SIZE ? hash(target, 0) : 0;
+        while (position + BLOCK_SIZE <= target.length) {
+            int matchOffset = -1;
+            int matchLength = 0;
+            int probes = 0;
+            for (int slot = mix(rolling) & mask; table[slot] != 0 && probes++ < MAX_PROBES; slot = (slot + 1) & mask) {
+                int candidate = table[slot] - 1;
+                int length = matchForward(base, candidate, target, position);
+                if (length >= BLOCK_SIZE && length > matchLength) {
+                    matchOffset = candidate;
+                    matchLength = length;
+                }
+            }
+
+            if (matchOffset < 0) {
+                if (position + BLOCK_SIZE < target.length)
+                    rolling = (rolling - target[position] * PRIME_POWER) * PRIME + target[position + BLOCK_SIZE];
+                position++;
+                continue;
+            }
+
+            // 向前扩展匹配，吃掉一部分待插入的内容
+            while (matchOffset > 0 && position > insertStart && base[matchOffset - 1] == target[position - 1]) {
+                matchOffset--;
+                position--;
+                matchLength++;
+            }
+            writeInsert(out, target, insertStart, position);
+            out.write(0);
+            writeVarint(out, matchOffset);
+            writeVarint(out, matchLength);
+
+            position += matchLength;
+            insertStart = position;
+            if (position + BLOCK_SIZE <= target.length) rolling = hash(target, position);
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    // 把差分应用到base上，得到目标内容
+    static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        int[] position = {0};
+        if (readVarint(delta, position) != base.length) throw new IOException("Delta base length mismatch");
+        byte[] target = new byte[readVarint(delta, position)];
+        int written = 0;
+        while (position[0] < delta.length) {
+            int op = delta[position[0]++];
+            if (op == 0) {
+                int offset = readVarint(delta, position);
+                int length = readVarint(delta, position);
+                if (offset + length > base.length || written + length > target.length) throw new IOException("Corrupted delta");
+                System.arraycopy(base, offset, target, written, length);
+                written += length;
+            } else if (op > 0) {
+                if (position[0] + op > delta.length || written + op > target.length) throw new IOException("Corrupted delta");
+                System.arraycopy(delta, position[0], target, written, op);
+                position[0] += op;
+                written += op;
+            } else throw new IOException("Corrupted delta");
+        }
+        if (written != target.length) throw new IOException("Corrupted delta");
+        return target;
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) h = h * PRIME + data[i];
+        return h;
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 15) ^ (h >>> 7);
+    }
+
+    private static int matchForward(byte[] base, int baseOffset, byte[] target, int targetOffset) {
+        int length = Math.min(base.length - baseOffset, target.length - targetOffset);
+        int mismatch = Arrays.mismatch(base, baseOffset, baseOffset + length, target, targetOffset, targetOffset + length);
+        return mismatch < 0 ? length : mismatch;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        while (from < to) {
+            int length = Math.min(MAX_INSERT, to - from);
+            out.write(length);
+            out.write(target, from, length);
+            from += length;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] position) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= data.length) throw new IOException("Corrupted delta");
+            int b = data[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Corrupted delta");
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.TreeSet;
+
+// 监听VFS事件，记录上次保存之后项目中发生变化的路径（相对于项目根目录）
+// 保存时只需沿这些路径重建目录object，其余子树直接复用上一个版本
+public class DirtyPathTracker implements Disposable {
+    private static final int MAX_DIRTY_PATHS = 10000; // 变化太多时放弃增量保存，退回完整遍历
+
+    private final Project project;
+    private TreeSet<String> dirtyPaths = new TreeSet<>();
+    private String baseline; // 上次保存得到的根目录哈希，此后的所有变化都记录在dirtyPaths中
+    private boolean overflowed = false; // 本次保存开始后是否丢弃过变化记录
+
+    public DirtyPathTracker(Project project) {
+        this.project = project;
+        project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                for (VFileEvent event : events) onFileEvent(event);
+            }
+        });
+        // 排除目录变化后，哪些子树需要保存也随之变化，下次保存完整遍历
+        project.getMessageBus().connect(this).subscribe(ModuleRootListener.TOPIC, new ModuleRootListener() {
+            @Override
+            public void rootsChanged(@NotNull ModuleRootEvent event) {
+                invalidate();
+            }
+        });
+    }
+
+    private void onFileEvent(VFileEvent event) {
+        if (event instanceof VFileMoveEvent) {
+            markDirty(((VFileMoveEvent) event).getOldPath());
+            markDirty(((VFileMoveEvent) event).getNewPath());
+        } else if (event instanceof VFilePropertyChangeEvent) {
+            VFilePropertyChangeEvent propertyEvent = (VFilePropertyChangeEvent) event;
+            if (propertyEvent.isRename()) {
+                markDirty(propertyEvent.getOldPath());
+                markDirty(propertyEvent.getNewPath());
+            }
+        } else if (event instanceof VFileCopyEvent) {
+            VFileCopyEvent copyEvent = (VFileCopyEvent) event;
+            markDirty(copyEvent.getNewParent().getPath() + '/' + copyEvent.getNewChildName());
+        } else {
+            markDirty(event.getPath()); // 内容修改、创建、删除
+        }
+    }
+
+    private synchronized void markDirty(String absolutePath) {
+        String basePath = project.getBasePath();
+        String path;
+        if (absolutePath.equals(basePath)) path = "";
+        else if (absolutePath.startsWith(basePath + '/')) path = absolutePath.substring(basePath.length() + 1);
+        else return;
+        if (path.equals(".autosave") || path.startsWith(".autosave/")) return;
+        // .gitignore变化会影响所在目录下所有子项是否被保存
+        if (path.equals(".gitignore") || path.endsWith("/.gitignore"))
+            path = path.substring(0, Math.max(path.lastIndexOf('/'), 0));
+
+        dirtyPaths.add(path);
+        if (dirtyPaths.size() > MAX_DIRTY_PATHS) invalidate();
+    }
+
+    // 取出上次保存以来变化的路径；如果当前工作区不是从previousRoot增量变化而来，返回null
+    public synchronized TreeSet<String> takeDirtyPaths(String previousRoot) {
+        TreeSet<String> taken = dirtyPaths;
+        dirtyPaths = new TreeSet<>();
+        overflowed = false;
+        if (baseline == null || !baseline.equals(previousRoot) || taken.contains("")) return null;
+        return taken;
+    }
+
+    // 保存成功后，从此刻起记录的变化都相对于rootHash
+    public synchronized void markClean(String rootHash) {
+        baseline = overflowed ? null : rootHash;
+    }
+
+    // 保存失败或变化无法追踪，下一次保存完整遍历项目
+    public synchronized void invalidate() {
+        baseline = null;
+        dirtyPaths.clear();
+        overflowed = true;
+    }
+
+    // path本身或它下面的某个路径是否有变化
+    static boolean containsPathOrDescendant(TreeSet<String> paths, String path) {
+        if (paths.contains(path)) return true;
+        String next = paths.ceiling(path + '/');
+        return next != null && next.startsWith(path + '/');
+    }
+
+    @Override
+    public void dispose() {
+    }
+}
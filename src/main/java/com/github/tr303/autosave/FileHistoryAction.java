@@ -0,0 +1,41 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+// 编辑器右键菜单：查看当前文件在哪些版本中发生了变化
+public class FileHistoryAction extends AnAction {
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        String path = getRelativePath(e);
+        if (path != null) new AutoSaveWindow(e.getProject(), path).show();
+    }
+
+    // 只对项目目录中的文件可用
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        e.getPresentation().setEnabledAndVisible(getRelativePath(e) != null);
+    }
+
+    @Override
+    public @NotNull ActionUpdateThread getActionUpdateThread() {
+        return ActionUpdateThread.BGT;
+    }
+
+    // 当前文件相对项目根目录的路径，不是项目中的文件时返回null
+    private static String getRelativePath(AnActionEvent e) {
+        Project project = e.getProject();
+        VirtualFile file = e.getData(CommonDataKeys.VIRTUAL_FILE);
+        if (project == null || project.getBasePath() == null || file == null || file.isDirectory()) return null;
+        String basePath = project.getBasePath();
+        if (!file.getPath().startsWith(basePath + '/')) return null;
+        String path = file.getPath().substring(basePath.length() + 1);
+        return path.equals(".autosave") || path.startsWith(".autosave/") ? null : path;
+    }
+}
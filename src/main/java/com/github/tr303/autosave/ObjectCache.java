@@ -0,0 +1,96 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.project.Project;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// 解码后的object内容的内存缓存，按内容占用的总字节数而不是条目数限制大小
+// 浏览历史、连续保存和删除版本时同一批目录object会被反复读取，因此目录object和文件object分开做LRU：
+// 文件object最多占用一小部分容量，并且总是先于目录object被淘汰
+// object按哈希寻址、内容不会改变，只有删除时需要失效
+public class ObjectCache {
+    private static final long MAX_BYTES = 32L << 20;
+    private static final long MAX_FILE_BYTES = MAX_BYTES / 4;
+    private static final long MAX_ENTRY_BYTES = 1L << 20; // 更大的object（例如大文件的内容）不缓存
+    private static final int ENTRY_OVERHEAD = 96; // 哈希字符串和链表节点的大致开销
+
+    private final LinkedHashMap<String, String> directories = new LinkedHashMap<>(256, 0.75f, true);
+    private final LinkedHashMap<String, String> files = new LinkedHashMap<>(256, 0.75f, true);
+    private long directoryBytes = 0;
+    private long fileBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public ObjectCache(Project project) {
+    }
+
+    synchronized String get(String hash) {
+        String content = directories.get(hash);
+        if (content == null) content = files.get(hash);
+        if (content != null) hits++;
+        else misses++;
+        return content;
+    }
+
+    synchronized void put(String hash, String content) {
+        long size = sizeOf(content);
+        if (size > MAX_ENTRY_BYTES) return;
+        if (content.startsWith("DIR@")) {
+            String old = directories.put(hash, content);
+            directoryBytes += size - (old == null ? 0 : sizeOf(old));
+        } else {
+            String old = files.put(hash, content);
+            fileBytes += size - (old == null ? 0 : sizeOf(old));
+        }
+        evict();
+    }
+
+    synchronized void invalidate(String hash) {
+        String old = directories.remove(hash);
+        if (old != null) directoryBytes -= sizeOf(old);
+        old = files.remove(hash);
+        if (old != null) fileBytes -= sizeOf(old);
+    }
+
+    synchronized void clear() {
+        directories.clear();
+        files.clear();
+        directoryBytes = 0;
+        fileBytes = 0;
+    }
+
+    // 先把文件object压到自己的上限以内，总量仍然超出时继续淘汰文件object，最后才淘汰目录object
+    private void evict() {
+        Iterator<Map.Entry<String, String>> it = files.entrySet().iterator();
+        while (it.hasNext() && (fileBytes > MAX_FILE_BYTES || fileBytes + directoryBytes > MAX_BYTES)) {
+            fileBytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+        it = directories.entrySet().iterator();
+        while (it.hasNext() && directoryBytes > MAX_BYTES) {
+            directoryBytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    // 按UTF-16估算字符串占用的内存
+    private static long sizeOf(String content) {
+        return 2L * content.length() + ENTRY_OVERHEAD;
+    }
+
+    synchronized long getHitCount() {
+        return hits;
+    }
+
+    synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized String getSummary() {
+        long total = hits + misses;
+        return String.format("Object cache: %d hits, %d misses (%.1f%% hit rate), %.1f KB cached",
+                hits, misses, total == 0 ? 0.0 : hits * 100.0 / total, (directoryBytes + fileBytes) / 1024.0);
+    }
+}
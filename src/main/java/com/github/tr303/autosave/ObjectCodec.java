@@ -0,0 +1,193 @@
+package com.github.tr303.autosave;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// object在pack中的编码方式：第一个字节标识编码，其余为编码后的内容
+// 以FIL@或DIR@开头的内容是引入编码之前写入的，按未压缩处理
+abstract class ObjectCodec {
+    static final ObjectCodec RAW = new ObjectCodec((byte) 0, "none") {
+        @Override
+        byte[] encode(byte[] content, int level) {
+            return content;
+        }
+
+        @Override
+        byte[] decode(byte[] encoded, int offset) {
+            return Arrays.copyOfRange(encoded, offset, encoded.length);
+        }
+
+        @Override
+        OutputStream encodingStream(OutputStream out, int level) {
+            return out;
+        }
+
+        @Override
+        InputStream decodingStream(InputStream in) {
+            return in;
+        }
+    };
+
+    static final ObjectCodec DEFLATE = new ObjectCodec((byte) 1, "deflate") {
+        @Override
+        byte[] encode(byte[] content, int level) {
+            Deflater deflater = new Deflater(level);
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        byte[] decode(byte[] encoded, int offset) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(encoded, offset, encoded.length - offset);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length * 3);
+                byte[] buffer = new byte[8192];
+                while (!inflater.finished()) {
+                    int inflated = inflater.inflate(buffer);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("Truncated deflate object");
+                    out.write(buffer, 0, inflated);
+                }
+                return out.toByteArray();
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        @Override
+        OutputStream encodingStream(OutputStream out, int level) {
+            Deflater deflater = new Deflater(level);
+            return new DeflaterOutputStream(out, deflater, 8192) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        InputStream decodingStream(InputStream in) {
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, 8192) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    };
+
+    // 新的编码加在这里，id一旦使用就不能再改变；id 2已被PackStore中的差分object使用
+    private static final ObjectCodec[] CODECS = {RAW, DEFLATE};
+
+    final byte id;
+    final String name;
+
+    ObjectCodec(byte id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    abstract byte[] encode(byte[] content, int level);
+
+    // 解码encoded中从offset开始的内容
+    abstract byte[] decode(byte[] encoded, int offset) throws IOException;
+
+    abstract OutputStream encodingStream(OutputStream out, int level);
+
+    abstract InputStream decodingStream(InputStream in);
+
+    static String[] names() {
+        return Arrays.stream(CODECS).map(codec -> codec.name).toArray(String[]::new);
+    }
+
+    static ObjectCodec byName(String name) {
+        for (ObjectCodec codec : CODECS)
+            if (codec.name.equals(name)) return codec;
+        return DEFLATE;
+    }
+
+    private static ObjectCodec byId(int id) throws IOException {
+        for (ObjectCodec codec : CODECS)
+            if (codec.id == id) return codec;
+        throw new IOException("Unknown object codec " + id);
+    }
+
+    private static boolean isLegacy(int firstByte) {
+        return firstByte == 'F' || firstByte == 'D';
+    }
+
+    // 编码一个object；压缩后没有变小的内容（例如图片）直接按原样保存，读取时省去解压
+    byte[] encodePayload(byte[] content, int level) {
+        byte[] encoded = encode(content, level);
+        ObjectCodec codec = this;
+        if (encoded.length >= content.length) {
+            encoded = content;
+            codec = RAW;
+        }
+        byte[] payload = new byte[encoded.length + 1];
+        payload[0] = codec.id;
+        System.arraycopy(encoded, 0, payload, 1, encoded.length);
+        return payload;
+    }
+
+    // 把编码字节写入out，返回写入编码后内容的流；调用方关闭返回的流
+    OutputStream encodePayloadStream(OutputStream out, int level) throws IOException {
+        out.write(id);
+        return encodingStream(out, level);
+    }
+
+    static byte[] decodePayload(byte[] payload) throws IOException {
+        return decodePayload(payload, 0);
+    }
+
+    // 解码从offset开始的编码内容
+    static byte[] decodePayload(byte[] payload, int offset) throws IOException {
+        if (payload.length == offset) return new byte[0];
+        if (isLegacy(payload[offset])) return offset == 0 ? payload : Arrays.copyOfRange(payload, offset, payload.length);
+        return byId(payload[offset]).decode(payload, offset + 1);
+    }
+
+    static InputStream decodePayloadStream(InputStream payload) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(payload, 1);
+        int first = in.read();
+        if (first < 0) {
+            in.close();
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        if (isLegacy(first)) {
+            in.unread(first);
+            return in;
+        }
+        return byId(first).decodingStream(in);
+    }
+}
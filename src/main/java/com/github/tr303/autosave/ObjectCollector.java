@@ -0,0 +1,220 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+// 标记-清除垃圾回收：从所有版本的根目录出发标记可达的object，删除pack中其余的object，并按标记结果重建引用计数
+// 引用计数只在正常保存和删除时维护，崩溃或异常中断留下的无人引用的object和错误的计数都由这里修正
+// 标记在低优先级的后台线程中进行并限制读取速度，期间保存和删除照常执行；
+// 只有最后补标新版本、清除和替换计数的阶段持有写锁，等待正在进行的保存、删除和回溯结束
+public class ObjectCollector implements Disposable {
+    static final long STARTUP_DELAY_SECONDS = 120; // 上次异常退出留下的垃圾在项目打开后清理
+    private static final long MAX_READ_BYTES_PER_SECOND = 32L << 20;
+    private static final int FILE_CHECK_BYTES = 64; // 检查文件object是否为切块列表时大约读取的字节数
+
+    private final Project project;
+    private final Logger log = Logger.getInstance(ObjectCollector.class);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock mutationLock = new ReentrantLock();
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> pending;
+    private volatile String lastSummary = "Garbage collection has not run yet";
+
+    public ObjectCollector(Project project) {
+        this.project = project;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AutoSave Garbage Collector");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    // 保存、删除和回溯在执行期间持有的共享锁，回收的最后阶段需要独占
+    Lock operationLock() {
+        return lock.readLock();
+    }
+
+    // 保存、删除、回溯、恢复和按策略清理版本之间互斥的锁，需要时在operationLock之前获取
+    Lock mutationLock() {
+        return mutationLock;
+    }
+
+    // 延迟执行一次回收；已经有等待中的回收时不重复安排
+    public synchronized void scheduleCollection(long delaySeconds) {
+        if (pending != null && !pending.isDone()) return;
+        pending = executor.schedule(this::collect, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    public String getLastSummary() {
+        return lastSummary;
+    }
+
+    // 执行一次完整的回收，返回从pack索引中回收的字节数
+    long collect() {
+        if (project.isDisposed()) return 0;
+        try {
+            PackStore packStore = project.getService(PackStore.class);
+            VersionLog versionLog = project.getService(VersionLog.class);
+            Marker marker = new Marker(new AutoSaveData(project), packStore);
+            long start = System.currentTimeMillis();
+
+            // 第一阶段：不加锁，标记当前所有版本
+            HashMap<String, Integer> markedVersions = new HashMap<>();
+            for (AutoSaveFunctional.VersionInfo version : versionLog.getVersions()) {
+                marker.markRoot(version.rootObject);
+                markedVersions.merge(versionKey(version), 1, Integer::sum);
+            }
+
+            // 第二阶段：等待进行中的操作结束，补标期间新增的版本，然后清除
+            lock.writeLock().lock();
+            try {
+                for (AutoSaveFunctional.VersionInfo version : versionLog.getVersions()) {
+                    if (markedVersions.merge(versionKey(version), -1, Integer::sum) < 0) marker.markRoot(version.rootObject);
+                }
+                // 标记期间被删除的版本仍然被计入了标记，这些object这次保留，计数也不能按标记结果替换
+                // 计数没有替换时，保存会按记录的计数认为object已经存在而不再写入，所以记录的计数大于0的object也不能清除
+                boolean versionsRemoved = markedVersions.values().stream().anyMatch(count -> count > 0);
+                ReferenceStore references = project.getService(ReferenceStore.class);
+                Predicate<byte[]> keep = key -> marker.counts.get(key) > 0 || (versionsRemoved && references.get(key) > 0);
+
+                long[] swept = new long[1];
+                long reclaimed = packStore.sweep(key -> {
+                    if (keep.test(key)) return true;
+                    swept[0]++;
+                    return false;
+                });
+                project.getService(ObjectCache.class).clear();
+                project.getService(TrigramIndex.class).prune(keep);
+                if (!versionsRemoved) references.replaceAll(marker.counts);
+                project.getService(PathIndex.class).prune(versionLog.getVersions().stream().map(version -> version.rootObject).toList());
+
+                lastSummary = String.format("Collected %d unreachable objects, reclaimed %.1f KB in %d ms (%d objects reachable%s)",
+                        swept[0], reclaimed / 1024.0, System.currentTimeMillis() - start, marker.counts.size(),
+                        marker.missing > 0 ? ", " + marker.missing + " missing" : "");
+                log.info(lastSummary);
+                return reclaimed;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (RuntimeException e) {
+            if (!Thread.currentThread().isInterrupted()) log.error(e); // 项目关闭时被中断不算错误
+            return 0;
+        }
+    }
+
+    // 重新打包pack文件，回收已删除object占用的磁盘空间，返回减少的字节数
+    // 拷贝与回收的标记一样限速，只有最后补拷贝和替换文件时持有写锁
+    long repack() {
+        if (project.isDisposed()) return 0;
+        try {
+            Throttle throttle = new Throttle();
+            long saved = project.getService(PackStore.class).repack(throttle::consume, lock.writeLock());
+            log.info(String.format("Repacked objects, saved %.1f KB", saved / 1024.0));
+            return saved;
+        } catch (RuntimeException e) {
+            if (!Thread.currentThread().isInterrupted()) log.error(e);
+            return 0;
+        }
+    }
+
+    private static String versionKey(AutoSaveFunctional.VersionInfo version) {
+        return version.timestamp + '\0' + version.rootObject;
+    }
+
+    // 沿目录object和切块列表标记，同时按"每个版本和每个不同的父object各算一次引用"计算引用计数
+    private class Marker {
+        final AutoSaveData ASD;
+        final PackStore packStore;
+        final RefCountMap counts = new RefCountMap();
+        int missing = 0;
+        private final Throttle throttle = new Throttle();
+
+        Marker(AutoSaveData ASD, PackStore packStore) {
+            this.ASD = ASD;
+            this.packStore = packStore;
+        }
+
+        void markRoot(String rootHash) {
+            ArrayDeque<String[]> pending = new ArrayDeque<>(); // {哈希, DIR或FIL}
+            if (reference(rootHash)) pending.push(new String[]{rootHash, "DIR"});
+            while (!pending.isEmpty()) {
+                String[] next = pending.pop();
+                if (next[1].equals("DIR")) expandDirectory(next[0], pending);
+                else expandFile(next[0]);
+            }
+        }
+
+        // 增加一次引用，第一次被引用时返回true，需要继续展开
+        private boolean reference(String hash) {
+            if (!PackStore.isValidHash(hash)) return false;
+            return counts.add(PackStore.hexToBytes(hash), 1) == 1;
+        }
+
+        private void expandDirectory(String hash, ArrayDeque<String[]> pending) {
+            byte[] content = packStore.read(hash); // 绕过object缓存，避免把常用的目录挤出去
+            if (content == null) {
+                missing++;
+                return;
+            }
+            throttle.consume(content.length);
+            String text = new String(content, StandardCharsets.UTF_8);
+            for (String entry : text.substring(text.indexOf('\0') + 1).split("\n")) {
+                String[] parts = entry.split("\0");
+                if (parts.length == 3 && reference(parts[0])) pending.push(new String[]{parts[0], parts[1]});
+            }
+        }
+
+        // 普通文件没有子项，切块保存的文件引用它的每一块；差分object一定是普通文件，不需要读取内容
+        private void expandFile(String hash) {
+            if (!packStore.contains(hash)) {
+                missing++;
+                return;
+            }
+            if (packStore.isDelta(hash)) return;
+            throttle.consume(FILE_CHECK_BYTES);
+            ArrayList<String> chunkHashes = ASD.getChunkHashes(hash);
+            if (chunkHashes == null) return;
+            throttle.consume(chunkHashes.size() * 80L);
+            for (String chunkHash : chunkHashes) reference(chunkHash);
+        }
+    }
+
+    // 读写速度超过上限时暂停，避免回收和重新打包影响编辑器和保存的磁盘访问
+    private static class Throttle {
+        private final long startNanos = System.nanoTime();
+        private long bytes = 0;
+
+        void consume(long count) {
+            bytes += count;
+            long expectedNanos = bytes * 1_000_000_000L / MAX_READ_BYTES_PER_SECOND;
+            long aheadMillis = (expectedNanos - (System.nanoTime() - startNanos)) / 1_000_000;
+            if (aheadMillis <= 0) return;
+            try {
+                Thread.sleep(aheadMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Garbage collection interrupted", e);
+            }
+        }
+    }
+
+    @Override
+    public void dispose() {
+        executor.shutdownNow();
+    }
+}
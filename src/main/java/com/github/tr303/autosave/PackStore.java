@@ -0,0 +1,826 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VfsUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+
+// 追加写入的object存储：所有object顺序写入objects.pack，objects.idx按哈希排序记录每个object的偏移
+// 读取一个object只需在内存索引中二分查找，然后对pack文件做一次定位读取
+public class PackStore implements Disposable {
+    static final int HASH_SIZE = 32;
+    private static final int PACK_MAGIC = 0x4153504B; // "ASPK"
+    private static final int INDEX_MAGIC = 0x41534958; // "ASIX"
+    private static final int FORMAT_VERSION = 1;
+    private static final int PACK_HEADER_SIZE = 8; // magic | version
+    private static final int INDEX_HEADER_SIZE = 20; // magic | version | 已索引的pack长度 | 条目数
+    private static final int RECORD_HEADER_SIZE = HASH_SIZE + 4; // hash | 内容长度
+    private static final int INDEX_ENTRY_SIZE = HASH_SIZE + 8 + 4; // hash | 内容偏移 | 内容长度
+    private static final int LOOSE_BATCH_SIZE = 512;
+    private static final int WRITE_BUFFER_SIZE = 8 << 20; // 写缓冲超过这个大小时提前写入pack
+    private static final byte DELTA_PAYLOAD = 2; // 差分object：2 | 基准记录的偏移 | 基准记录的长度 | 链深度 | 编码后的差分
+    private static final int DELTA_HEADER_SIZE = 1 + 8 + 4 + 1;
+    private static final int MIN_DELTA_SIZE = 1024; // 更小的object不值得计算差分
+
+    private final Project project;
+    private final Logger log = Logger.getInstance(PackStore.class);
+
+    private FileChannel pack;
+    private byte[] sortedIndex = new byte[0]; // 已落盘的有序索引
+    private int sortedCount = 0;
+    private final HashMap<String, long[]> recent = new HashMap<>(); // 索引落盘之后追加的object: {偏移, 长度}
+    private final HashSet<String> removed = new HashSet<>(); // 已删除但删除尚未落盘的object
+    private boolean dirty = false;
+    private byte[] pendingBytes = new byte[0]; // 尚未写入pack的记录，flush时一次写入
+    private int pendingSize = 0;
+    private long pendingStart; // 写缓冲中第一条记录在pack中的位置
+    private long rawBytes = 0; // 本次运行写入的object压缩前后的总大小
+    private long storedBytes = 0;
+
+    public PackStore(Project project) {
+        this.project = project;
+    }
+
+    private Path getAutosaveDir() {
+        return Path.of(project.getBasePath(), ".autosave");
+    }
+
+    private Path getPackFile() {
+        return getAutosaveDir().resolve("pack").resolve("objects.pack");
+    }
+
+    private Path getIndexFile() {
+        return getAutosaveDir().resolve("pack").resolve("objects.idx");
+    }
+
+    private Path getLooseObjectFile(String hash) {
+        return getAutosaveDir().resolve("objects").resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    // 读取某个object的原始字节，pack中没有时回退到旧版本留下的松散object文件
+    public byte[] read(String hash) {
+        synchronized (this) {
+            if (!open()) return null;
+            long[] entry = find(hash);
+            if (entry != null) try {
+                return decodeRecord(entry[0], (int) entry[1]);
+            } catch (IOException e) {
+                log.error(e);
+                return null;
+            }
+        }
+
+        byte[] loose = readLoose(hash);
+        if (loose != null) return loose;
+
+        // 松散object可能刚好被后台重新打包，再查一次pack
+        synchronized (this) {
+            long[] entry = find(hash);
+            if (entry != null) try {
+                return decodeRecord(entry[0], (int) entry[1]);
+            } catch (IOException e) {
+                log.error(e);
+            }
+        }
+        return null;
+    }
+
+    // 解码pack中的一条记录；差分object先还原基准记录，再应用差分
+    // 基准按偏移引用，删除基准只修改索引，它的字节在重新打包之前一直留在pack中
+    private byte[] decodeRecord(long offset, int length) throws IOException {
+        byte[] payload = readAt(offset, length);
+        if (payload.length == 0 || payload[0] != DELTA_PAYLOAD) return ObjectCodec.decodePayload(payload);
+
+        ByteBuffer header = ByteBuffer.wrap(payload, 1, DELTA_HEADER_SIZE - 1);
+        long baseOffset = header.getLong();
+        int baseLength = header.getInt();
+        if (baseOffset >= offset) throw new IOException("Corrupted delta object at " + offset);
+        byte[] base = decodeRecord(baseOffset, baseLength);
+        return Delta.apply(base, ObjectCodec.decodePayload(payload, DELTA_HEADER_SIZE));
+    }
+
+    private static int deltaDepth(byte[] payload) {
+        return payload.length > 0 && payload[0] == DELTA_PAYLOAD ? payload[DELTA_HEADER_SIZE - 1] : 0;
+    }
+
+    public synchronized boolean contains(String hash) {
+        if (!open()) return false;
+        return find(hash) != null || Files.exists(getLooseObjectFile(hash));
+    }
+
+    // 以某个哈希值追加一个object，按设置中的编码压缩，已存在时什么也不做
+    public synchronized void append(String hash, byte[] content) {
+        if (!open() || contains(hash)) return;
+        try {
+            appendEncoded(hash, content);
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+
+    private void appendEncoded(String hash, byte[] content) throws IOException {
+        AutoSaveSettings settings = AutoSaveSettings.getInstance();
+        byte[] payload = settings.getCodec().encodePayload(content, settings.getCompressionLevel());
+        appendRecord(hash, payload);
+        rawBytes += content.length;
+        storedBytes += payload.length;
+    }
+
+    // 以同一路径上一次保存的object为基准，把object保存为差分
+    // 差分不够小、基准不在pack中或差分链已达到上限时保存完整内容
+    public void appendDelta(String hash, byte[] content, String baseHash) {
+        AutoSaveSettings settings = AutoSaveSettings.getInstance();
+        int maxDepth = settings.getMaxDeltaChainDepth();
+        if (content.length < MIN_DELTA_SIZE || maxDepth == 0 || hash.equals(baseHash)) {
+            append(hash, content);
+            return;
+        }
+
+        long[] base;
+        byte[] baseContent = null;
+        int baseDepth = 0;
+        synchronized (this) {
+            if (!open() || contains(hash)) return;
+            base = find(baseHash);
+            if (base != null) try {
+                baseDepth = deltaDepth(readAt(base[0], (int) Math.min(base[1], DELTA_HEADER_SIZE)));
+                if (baseDepth < maxDepth) baseContent = decodeRecord(base[0], (int) base[1]);
+            } catch (IOException e) {
+                log.warn("failed to read delta base " + baseHash, e);
+                baseContent = null;
+            }
+        }
+        if (baseContent == null) {
+            append(hash, content);
+            return;
+        }
+
+        // 计算差分时不持有锁，其它线程可以继续读写
+        byte[] delta = Delta.create(baseContent, content);
+        if (delta.length >= content.length / 2) {
+            append(hash, content);
+            return;
+        }
+        byte[] encoded = settings.getCodec().encodePayload(delta, settings.getCompressionLevel());
+
+        synchronized (this) {
+            if (contains(hash)) return;
+            if (!Arrays.equals(find(baseHash), base)) {
+                // 基准在计算差分期间被删除或移动
+                append(hash, content);
+                return;
+            }
+            try {
+                ByteBuffer payload = ByteBuffer.allocate(DELTA_HEADER_SIZE + encoded.length);
+                payload.put(DELTA_PAYLOAD).putLong(base[0]).putInt((int) base[1]).put((byte) (baseDepth + 1)).put(encoded);
+                appendRecord(hash, payload.array());
+                rawBytes += content.length;
+                storedBytes += payload.capacity();
+            } catch (IOException e) {
+                log.error(e);
+            }
+        }
+    }
+
+    // 把临时文件中已经编码好的object整体拷贝进pack，已存在时什么也不做
+    public synchronized void appendFrom(String hash, Path spool, long rawLength) throws IOException {
+        if (!open() || contains(hash)) return;
+        writePending();
+        try (FileChannel source = FileChannel.open(spool, StandardOpenOption.READ)) {
+            long length = source.size();
+            if (length > Integer.MAX_VALUE) throw new IOException("Object too large: " + spool);
+
+            long position = pack.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE).put(hexToBytes(hash)).putInt((int) length);
+            header.flip();
+            writeFully(header, position);
+            long copied = 0;
+            while (copied < length) copied += pack.transferFrom(source, position + RECORD_HEADER_SIZE + copied, length - copied);
+
+            recent.put(hash, new long[]{position + RECORD_HEADER_SIZE, length});
+            removed.remove(hash);
+            dirty = true;
+            rawBytes += rawLength;
+            storedBytes += length;
+        }
+    }
+
+    // 流式保存大文件时使用的临时文件，位于pack目录下，保证拷贝时不跨文件系统
+    public synchronized Path createSpoolFile() throws IOException {
+        if (!open()) throw new IOException("Cannot open pack file " + getPackFile()); // 打开时会清理残留的临时文件
+        return Files.createTempFile(getPackFile().getParent(), "spool", ".tmp");
+    }
+
+    // 以流的方式读取并解码object，不把整个object读入内存
+    // 流使用自己打开的文件句柄，读到一半时重新打包关闭并替换pack也不受影响，读的仍是打开时的文件
+    public InputStream openStream(String hash) throws IOException {
+        synchronized (this) {
+            if (!open()) return null;
+            long[] entry = find(hash);
+            if (entry != null) {
+                boolean inMemory = (pendingSize > 0 && entry[0] >= pendingStart) || (entry[1] > 0 && readAt(entry[0], 1)[0] == DELTA_PAYLOAD);
+                if (!inMemory) return ObjectCodec.decodePayloadStream(new PackInputStream(getPackFile(), entry[0], entry[1]));
+                byte[] content = read(hash);
+                if (content == null) throw new IOException("Cannot read object " + hash);
+                return new ByteArrayInputStream(content);
+            }
+        }
+        byte[] content = read(hash);
+        return content == null ? null : new ByteArrayInputStream(content);
+    }
+
+    // 是否以差分形式保存：差分object只会是普通文件，判断时只需读取一个字节
+    public synchronized boolean isDelta(String hash) {
+        if (!open()) return false;
+        long[] entry = find(hash);
+        if (entry == null || entry[1] == 0) return false;
+        try {
+            return readAt(entry[0], 1)[0] == DELTA_PAYLOAD;
+        } catch (IOException e) {
+            log.error(e);
+            return false;
+        }
+    }
+
+    // 从索引中删除所有keep返回false的object并写入索引，返回它们在pack中占用的字节数
+    // 和remove一样只修改索引，差分object仍然可以通过偏移读取被删除的基准
+    public synchronized long sweep(Predicate<byte[]> keep) {
+        if (!open()) return 0;
+        long reclaimed = 0;
+        byte[] key = new byte[HASH_SIZE];
+        for (int i = 0; i < sortedCount; i++) {
+            int from = i * INDEX_ENTRY_SIZE;
+            System.arraycopy(sortedIndex, from, key, 0, HASH_SIZE);
+            if (keep.test(key)) continue;
+            String hash = bytesToHex(key);
+            if (recent.containsKey(hash) || !removed.add(hash)) continue;
+            reclaimed += RECORD_HEADER_SIZE + ByteBuffer.wrap(sortedIndex, from + HASH_SIZE + 8, 4).getInt();
+            dirty = true;
+        }
+        for (Iterator<Map.Entry<String, long[]>> it = recent.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, long[]> entry = it.next();
+            if (keep.test(hexToBytes(entry.getKey()))) continue;
+            reclaimed += RECORD_HEADER_SIZE + entry.getValue()[1];
+            it.remove();
+            if (findSorted(hexToBytes(entry.getKey())) >= 0) removed.add(entry.getKey());
+            dirty = true;
+        }
+        flush();
+        return reclaimed;
+    }
+
+    // 删除只修改索引，pack中的字节由重新打包回收
+    public synchronized void remove(String hash) {
+        if (!open()) return;
+        if (recent.remove(hash) != null) dirty = true;
+        if (findSorted(hexToBytes(hash)) >= 0 && removed.add(hash)) dirty = true;
+        try {
+            Files.deleteIfExists(getLooseObjectFile(hash));
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+
+    // 提交本次操作的所有写入：写缓冲一次写入pack，再将内存中的索引变化写入objects.idx
+    public synchronized void flush() {
+        if (!open() || !dirty) return;
+        try {
+            writePending();
+            pack.force(false); // 索引只能指向已经落盘的数据
+
+            ArrayList<byte[]> appended = new ArrayList<>();
+            for (Map.Entry<String, long[]> entry : recent.entrySet()) {
+                byte[] indexEntry = new byte[INDEX_ENTRY_SIZE];
+                ByteBuffer.wrap(indexEntry).put(hexToBytes(entry.getKey())).putLong(entry.getValue()[0]).putInt((int) entry.getValue()[1]);
+                appended.add(indexEntry);
+            }
+            appended.sort((a, b) -> Arrays.compareUnsigned(a, 0, HASH_SIZE, b, 0, HASH_SIZE));
+
+            // 合并两个有序序列，跳过已删除和被重新追加的条目
+            ByteBuffer merged = ByteBuffer.allocate((sortedCount + appended.size()) * INDEX_ENTRY_SIZE);
+            int i = 0, j = 0, count = 0;
+            while (i < sortedCount || j < appended.size()) {
+                int cmp;
+                if (i == sortedCount) cmp = 1;
+                else if (j == appended.size()) cmp = -1;
+                else cmp = Arrays.compareUnsigned(sortedIndex, i * INDEX_ENTRY_SIZE, i * INDEX_ENTRY_SIZE + HASH_SIZE, appended.get(j), 0, HASH_SIZE);
+
+                if (cmp < 0) {
+                    if (removed.isEmpty() || !removed.contains(bytesToHex(Arrays.copyOfRange(sortedIndex, i * INDEX_ENTRY_SIZE, i * INDEX_ENTRY_SIZE + HASH_SIZE)))) {
+                        merged.put(sortedIndex, i * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE);
+                        count++;
+                    }
+                    i++;
+                } else {
+                    if (cmp == 0) i++;
+                    merged.put(appended.get(j++));
+                    count++;
+                }
+            }
+
+            byte[] newIndex = Arrays.copyOf(merged.array(), count * INDEX_ENTRY_SIZE);
+            writeIndexFile(newIndex, count, pack.size());
+
+            sortedIndex = newIndex;
+            sortedCount = count;
+            recent.clear();
+            removed.clear();
+            dirty = false;
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+
+    // 索引中所有object的记录在pack中占用的字节数，重新打包后pack大约只剩这么大
+    public synchronized long liveBytes() {
+        if (!open()) return 0;
+        long total = 0;
+        for (int i = 0; i < sortedCount; i++) {
+            int from = i * INDEX_ENTRY_SIZE;
+            if (!removed.isEmpty() && removed.contains(bytesToHex(Arrays.copyOfRange(sortedIndex, from, from + HASH_SIZE)))) continue;
+            if (!recent.isEmpty() && recent.containsKey(bytesToHex(Arrays.copyOfRange(sortedIndex, from, from + HASH_SIZE)))) continue;
+            total += RECORD_HEADER_SIZE + ByteBuffer.wrap(sortedIndex, from + HASH_SIZE + 8, 4).getInt();
+        }
+        for (long[] entry : recent.values()) total += RECORD_HEADER_SIZE + entry[1];
+        return total;
+    }
+
+    public synchronized long packSize() {
+        if (!open()) return 0;
+        try {
+            return pack.size() + pendingSize;
+        } catch (IOException e) {
+            log.error(e);
+            return 0;
+        }
+    }
+
+    // 重新打包：把索引中的object按原来的顺序拷贝到新的pack，回收已删除的object占用的空间，返回回收的字节数
+    // 差分object按偏移引用基准，拷贝时改写为新的偏移；基准已被删除时，差分链仍能接到拷贝过的记录就把删除的差分作为不在索引中的基准保留，
+    // 否则链的底部是一个已删除的完整object，把这个差分还原为完整内容重新编码
+    // 拷贝在锁外逐条进行，每条之后调用throttle限速；最后持有commitLock补上拷贝期间追加的记录，再替换pack和索引
+    public long repack(LongConsumer throttle, Lock commitLock) {
+        ArrayList<long[]> snapshot; // 开始时索引中的记录 {偏移, 长度}，按偏移排序
+        long snapshotEnd;
+        Path newPack;
+        synchronized (this) {
+            if (!open()) return 0;
+            flush();
+            try {
+                snapshotEnd = pack.size();
+                newPack = getPackFile().resolveSibling("objects.pack.new");
+            } catch (IOException e) {
+                log.error(e);
+                return 0;
+            }
+            snapshot = indexEntriesByOffset();
+        }
+
+        HashMap<Long, long[]> moved = new HashMap<>(); // 旧偏移 -> 新pack中的 {偏移, 长度}
+        try (FileChannel out = FileChannel.open(newPack, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_SIZE).putInt(PACK_MAGIC).putInt(FORMAT_VERSION);
+            header.flip();
+            long position = writeTo(out, header, 0);
+            for (long[] entry : snapshot) {
+                long before = position;
+                synchronized (this) { // 每条记录只短暂持有锁，读写照常进行
+                    if (!open()) throw new IOException("Pack file closed during repack");
+                    position = copyRecord(entry, out, position, moved);
+                }
+                throttle.accept(position - before);
+            }
+
+            commitLock.lock();
+            try {
+                synchronized (this) {
+                    return commitRepack(out, position, snapshotEnd, moved, newPack);
+                }
+            } finally {
+                commitLock.unlock();
+            }
+        } catch (IOException e) {
+            log.error(e);
+            return 0;
+        } finally {
+            try {
+                Files.deleteIfExists(newPack);
+            } catch (IOException e) {
+                log.error(e);
+            }
+        }
+    }
+
+    // 补拷贝开始之后追加的记录，写出新的索引并替换文件
+    private long commitRepack(FileChannel out, long position, long snapshotEnd, HashMap<Long, long[]> moved, Path newPack) throws IOException {
+        if (!open()) throw new IOException("Pack file closed during repack");
+        flush();
+        for (long[] entry : indexEntriesByOffset())
+            if (entry[0] >= snapshotEnd) position = copyRecord(entry, out, position, moved);
+
+        // 新索引与当前索引顺序相同，只是偏移不同
+        byte[] newIndex = new byte[sortedCount * INDEX_ENTRY_SIZE];
+        for (int i = 0; i < sortedCount; i++) {
+            int from = i * INDEX_ENTRY_SIZE;
+            long[] target = moved.get(ByteBuffer.wrap(sortedIndex, from + HASH_SIZE, 8).getLong());
+            if (target == null) throw new IOException("Object missing from repacked pack file");
+            ByteBuffer.wrap(newIndex, from, INDEX_ENTRY_SIZE).put(sortedIndex, from, HASH_SIZE).putLong(target[0]).putInt((int) target[1]);
+        }
+        out.force(false);
+        out.close(); // 替换之前关闭，部分系统不能移动打开的文件
+
+        long oldSize = pack.size();
+        // 先删除旧索引：替换pack之后崩溃时，打开时会扫描整个新pack重建索引
+        Files.deleteIfExists(getIndexFile());
+        close();
+        Files.move(newPack, getPackFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writeIndexFile(newIndex, sortedCount, position);
+        if (!open()) throw new IOException("Failed to reopen pack file " + getPackFile());
+        return oldSize - position;
+    }
+
+    // 把一条记录追加到新的pack，返回新的写入位置
+    private long copyRecord(long[] entry, FileChannel out, long position, HashMap<Long, long[]> moved) throws IOException {
+        if (moved.containsKey(entry[0])) return position; // 已经作为其它差分的基准拷贝过
+        byte[] payload = readAt(entry[0], (int) entry[1]);
+        if (payload.length > 0 && payload[0] == DELTA_PAYLOAD) {
+            ByteBuffer header = ByteBuffer.wrap(payload, 1, DELTA_HEADER_SIZE - 1);
+            long baseOffset = header.getLong();
+            int baseLength = header.getInt();
+            if (!moved.containsKey(baseOffset) && survivingChain(baseOffset, moved)) {
+                // 基准已被删除但只是一段差分，不在索引中保留，只作为基准拷贝
+                position = copyRecord(new long[]{baseOffset, baseLength}, out, position, moved);
+            }
+            long[] base = moved.get(baseOffset);
+            if (base != null) {
+                ByteBuffer.wrap(payload, 1, DELTA_HEADER_SIZE - 1).putLong(base[0]).putInt((int) base[1]);
+            } else {
+                // 差分链最终落在一个已被删除的完整object上，把这个object还原为完整内容，不再保留整条链
+                AutoSaveSettings settings = AutoSaveSettings.getInstance();
+                payload = settings.getCodec().encodePayload(decodeRecord(entry[0], (int) entry[1]), settings.getCompressionLevel());
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE).put(readAt(entry[0] - RECORD_HEADER_SIZE, HASH_SIZE)).putInt(payload.length);
+        header.flip();
+        position = writeTo(out, header, position);
+        moved.put(entry[0], new long[]{position, payload.length});
+        return writeTo(out, ByteBuffer.wrap(payload), position);
+    }
+
+    // 从offset处的记录沿差分链向下，在遇到完整object之前遇到已拷贝的记录时返回true
+    private boolean survivingChain(long offset, HashMap<Long, long[]> moved) throws IOException {
+        while (!moved.containsKey(offset)) {
+            byte[] header = readAt(offset, 1);
+            if (header[0] != DELTA_PAYLOAD) return false;
+            offset = ByteBuffer.wrap(readAt(offset + 1, 8)).getLong();
+        }
+        return true;
+    }
+
+    // 索引中所有记录的 {偏移, 长度}，按偏移排序，调用前需要先flush
+    private ArrayList<long[]> indexEntriesByOffset() {
+        ArrayList<long[]> entries = new ArrayList<>(sortedCount);
+        for (int i = 0; i < sortedCount; i++) {
+            ByteBuffer buffer = ByteBuffer.wrap(sortedIndex, i * INDEX_ENTRY_SIZE + HASH_SIZE, 12);
+            entries.add(new long[]{buffer.getLong(), buffer.getInt()});
+        }
+        entries.sort((a, b) -> Long.compare(a[0], b[0]));
+        return entries;
+    }
+
+    private static long writeTo(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+        return position;
+    }
+
+    // 本次运行中写入的object的压缩率
+    public synchronized String getCompressionSummary() {
+        if (rawBytes == 0) return "No objects written yet";
+        return String.format("Objects compressed from %.1f KB to %.1f KB (%.1f%%)",
+                rawBytes / 1024.0, storedBytes / 1024.0, storedBytes * 100.0 / rawBytes);
+    }
+
+    // 后台任务：把旧版本留下的objects/xx/松散文件搬进pack，并删除原文件
+    public void repackLooseObjects() {
+        Path objectsDir = getAutosaveDir().resolve("objects");
+        if (!Files.isDirectory(objectsDir)) return;
+
+        int moved = 0;
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(objectsDir)) {
+            for (Path prefixDir : prefixes) {
+                if (!Files.isDirectory(prefixDir)) continue;
+
+                ArrayList<Path> batch = new ArrayList<>();
+                try (DirectoryStream<Path> objects = Files.newDirectoryStream(prefixDir)) {
+                    for (Path object : objects) {
+                        batch.add(object);
+                        if (batch.size() >= LOOSE_BATCH_SIZE) {
+                            moved += repackBatch(prefixDir, batch);
+                            batch.clear();
+                        }
+                    }
+                }
+                moved += repackBatch(prefixDir, batch);
+
+                try {
+                    Files.deleteIfExists(prefixDir);
+                } catch (DirectoryNotEmptyException ignored) {
+                    // 目录中还有无法识别的文件，保留
+                }
+            }
+        } catch (IOException e) {
+            log.error(e);
+        }
+
+        if (moved > 0) {
+            log.info("repacked " + moved + " loose objects");
+            VfsUtil.markDirtyAndRefresh(true, true, true, objectsDir.toFile());
+        }
+    }
+
+    // 先追加并落盘一批object，再删除对应的松散文件
+    private int repackBatch(Path prefixDir, ArrayList<Path> batch) throws IOException {
+        ArrayList<Path> packed = new ArrayList<>();
+        synchronized (this) {
+            if (!open()) return 0;
+            for (Path object : batch) {
+                String hash = prefixDir.getFileName().toString() + object.getFileName().toString();
+                if (!isValidHash(hash)) continue;
+                try {
+                    if (find(hash) == null) appendEncoded(hash, Files.readAllBytes(object));
+                    packed.add(object);
+                } catch (NoSuchFileException ignored) {
+                    // 已被并发删除
+                }
+            }
+            flush();
+        }
+        for (Path object : packed) Files.deleteIfExists(object);
+        return packed.size();
+    }
+
+    // 记录先进入写缓冲，超大的object直接写入pack
+    private void appendRecord(String hash, byte[] content) throws IOException {
+        if (pendingSize + RECORD_HEADER_SIZE + content.length > WRITE_BUFFER_SIZE) writePending();
+        if (pendingSize == 0) pendingStart = pack.size();
+        long position = pendingStart + pendingSize;
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE).put(hexToBytes(hash)).putInt(content.length);
+        if (RECORD_HEADER_SIZE + content.length > WRITE_BUFFER_SIZE) {
+            header.flip();
+            writeFully(header, position);
+            writeFully(ByteBuffer.wrap(content), position + RECORD_HEADER_SIZE);
+        } else {
+            int required = pendingSize + RECORD_HEADER_SIZE + content.length;
+            if (required > pendingBytes.length)
+                pendingBytes = Arrays.copyOf(pendingBytes, Math.min(WRITE_BUFFER_SIZE, Math.max(required, pendingBytes.length * 2)));
+            System.arraycopy(header.array(), 0, pendingBytes, pendingSize, RECORD_HEADER_SIZE);
+            System.arraycopy(content, 0, pendingBytes, pendingSize + RECORD_HEADER_SIZE, content.length);
+            pendingSize = required;
+        }
+
+        recent.put(hash, new long[]{position + RECORD_HEADER_SIZE, content.length});
+        removed.remove(hash);
+        dirty = true;
+    }
+
+    private long[] find(String hash) {
+        long[] entry = recent.get(hash);
+        if (entry != null) return entry;
+        if (removed.contains(hash)) return null;
+
+        int idx = findSorted(hexToBytes(hash));
+        if (idx < 0) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(sortedIndex, idx * INDEX_ENTRY_SIZE + HASH_SIZE, 12);
+        return new long[]{buffer.getLong(), buffer.getInt()};
+    }
+
+    // 在有序索引中二分查找
+    private int findSorted(byte[] key) {
+        int low = 0, high = sortedCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int from = mid * INDEX_ENTRY_SIZE;
+            int cmp = Arrays.compareUnsigned(sortedIndex, from, from + HASH_SIZE, key, 0, HASH_SIZE);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    private byte[] readLoose(String hash) {
+        try {
+            return Files.readAllBytes(getLooseObjectFile(hash));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.error(e);
+            return null;
+        }
+    }
+
+    private void writePending() throws IOException {
+        if (pendingSize == 0) return;
+        writeFully(ByteBuffer.wrap(pendingBytes, 0, pendingSize), pendingStart);
+        pendingSize = 0;
+        if (pendingBytes.length > WRITE_BUFFER_SIZE / 8) pendingBytes = new byte[0]; // 不长期占用大块内存
+    }
+
+    private byte[] readAt(long position, int length) throws IOException {
+        if (pendingSize > 0 && position >= pendingStart)
+            return Arrays.copyOfRange(pendingBytes, (int) (position - pendingStart), (int) (position - pendingStart) + length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (pack.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of pack file");
+        }
+        return buffer.array();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) pack.write(buffer, start + buffer.position());
+    }
+
+    // 第一次使用时打开pack，并载入索引；索引之后追加的记录通过扫描pack尾部恢复
+    private boolean open() {
+        if (pack != null) return true;
+        try {
+            Files.createDirectories(getPackFile().getParent());
+            pack = FileChannel.open(getPackFile(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            if (pack.size() < PACK_HEADER_SIZE) {
+                pack.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_SIZE).putInt(PACK_MAGIC).putInt(FORMAT_VERSION);
+                header.flip();
+                writeFully(header, 0);
+            } else {
+                ByteBuffer header = ByteBuffer.wrap(readAt(0, PACK_HEADER_SIZE));
+                if (header.getInt() != PACK_MAGIC || header.getInt() != FORMAT_VERSION)
+                    throw new IOException("Unsupported pack file " + getPackFile());
+            }
+
+            try (DirectoryStream<Path> spools = Files.newDirectoryStream(getPackFile().getParent(), "spool*.tmp")) {
+                for (Path spool : spools) Files.deleteIfExists(spool); // 上次异常退出留下的临时文件
+            }
+
+            long indexed = loadIndex();
+            scanPackTail(indexed);
+            return true;
+        } catch (IOException e) {
+            log.error(e);
+            close();
+            return false;
+        }
+    }
+
+    private long loadIndex() throws IOException {
+        sortedIndex = new byte[0];
+        sortedCount = 0;
+        if (!Files.exists(getIndexFile())) return PACK_HEADER_SIZE;
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(getIndexFile()));
+        if (buffer.remaining() < INDEX_HEADER_SIZE || buffer.getInt() != INDEX_MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            log.warn("ignored invalid pack index, rebuilding from pack");
+            return PACK_HEADER_SIZE;
+        }
+        long indexed = buffer.getLong();
+        int count = buffer.getInt();
+        if (indexed > pack.size() || buffer.remaining() != count * INDEX_ENTRY_SIZE) {
+            log.warn("pack index does not match pack, rebuilding from pack");
+            return PACK_HEADER_SIZE;
+        }
+
+        sortedIndex = new byte[count * INDEX_ENTRY_SIZE];
+        buffer.get(sortedIndex);
+        sortedCount = count;
+        return indexed;
+    }
+
+    // 从已索引位置开始扫描pack，截掉崩溃时写了一半的记录
+    private void scanPackTail(long position) throws IOException {
+        long size = pack.size();
+        while (position + RECORD_HEADER_SIZE <= size) {
+            ByteBuffer header = ByteBuffer.wrap(readAt(position, RECORD_HEADER_SIZE));
+            byte[] hash = new byte[HASH_SIZE];
+            header.get(hash);
+            int length = header.getInt();
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > size) break;
+
+            recent.put(bytesToHex(hash), new long[]{position + RECORD_HEADER_SIZE, length});
+            dirty = true;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (position < size) {
+            log.warn("truncated incomplete record at the end of pack file");
+            pack.truncate(position);
+        }
+    }
+
+    private void writeIndexFile(byte[] entries, int count, long indexed) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE).putInt(INDEX_MAGIC).putInt(FORMAT_VERSION).putLong(indexed).putInt(count);
+        Path tmp = getIndexFile().resolveSibling("objects.idx.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            header.flip();
+            ByteBuffer body = ByteBuffer.wrap(entries);
+            while (header.hasRemaining() || body.hasRemaining()) out.write(new ByteBuffer[]{header, body});
+            out.force(false);
+        }
+        Files.move(tmp, getIndexFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized void close() {
+        if (pack != null) try {
+            pack.close();
+        } catch (IOException e) {
+            log.error(e);
+        }
+        pack = null;
+    }
+
+    @Override
+    public void dispose() {
+        flush();
+        close();
+    }
+
+    // 按位置读取pack中一段内容的输入流，关闭时关闭自己的文件句柄
+    private static class PackInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        PackInputStream(Path packFile, long position, long length) throws IOException {
+            this.channel = FileChannel.open(packFile, StandardOpenOption.READ);
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (read < 0) throw new IOException("Unexpected end of pack file");
+            position += read;
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    static boolean isValidHash(String hash) {
+        if (hash.length() != HASH_SIZE * 2) return false;
+        for (int i = 0; i < hash.length(); i++)
+            if (Character.digit(hash.charAt(i), 16) < 0) return false;
+        return true;
+    }
+
+    static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) ((Character.digit(hex.charAt(2 * i), 16) << 4) | Character.digit(hex.charAt(2 * i + 1), 16));
+        return bytes;
+    }
+
+    static String bytesToHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
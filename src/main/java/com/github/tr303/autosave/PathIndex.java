@@ -0,0 +1,433 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// 每个版本的路径索引：把版本中每个文件的相对路径直接映射到文件object的哈希
+// 索引是一棵固定两层的哈希树：路径散列值的高6位选择根节点的子节点，接下来6位选择中间节点的子节点，
+// 叶子节点按路径顺序存放落在同一格中的文件。节点按内容去重后追加写入PATHS.idx，
+// 相邻版本只有改动的文件所在的叶子和它上面的两个节点不同，其余节点都是共享的
+// 查找一个路径固定读取三个节点，与路径在目录树中的深度无关；还没有索引的版本在第一次查找时遍历目录object补建
+public class PathIndex implements Disposable {
+    private static final int MAGIC = 0x41535049; // "ASPI"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4; // magic | version
+    private static final byte TYPE_INNER = 1; // 位图 | 每个非空子节点的偏移
+    private static final byte TYPE_LEAF = 2; // 条目数 | 每个条目的路径长度、路径和文件哈希
+    private static final byte TYPE_ROOT = 3; // 版本根目录哈希 | 索引根节点的偏移，只追加在节点之后
+    private static final int FANOUT_BITS = 6;
+    private static final int FANOUT = 1 << FANOUT_BITS;
+    private static final int CACHED_NODES = 4096;
+
+    private final Project project;
+    private final Logger log = Logger.getInstance(PathIndex.class);
+    private final AutoSaveData ASD;
+
+    private FileChannel file;
+    private final HashMap<String, Long> nodes = new HashMap<>(); // 节点内容的哈希 -> 偏移，用于去重
+    private final HashMap<String, Long> roots = new HashMap<>(); // 版本根目录哈希 -> 索引根节点的偏移
+    private final LinkedHashMap<Long, ByteBuffer> nodeCache = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+            return size() > CACHED_NODES;
+        }
+    };
+
+    public PathIndex(Project project) {
+        this.project = project;
+        ASD = new AutoSaveData(project);
+    }
+
+    private Path getAutosaveDir() {
+        return Path.of(project.getBasePath(), ".autosave");
+    }
+
+    private Path getIndexFile() {
+        return getAutosaveDir().resolve("PATHS.idx");
+    }
+
+    // 为根目录为rootHash的版本建立索引，files为相对路径到文件object哈希的映射
+    public synchronized void add(String rootHash, Map<String, String> files) {
+        if (!open() || roots.containsKey(rootHash)) return;
+        try {
+            addLocked(rootHash, files);
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+
+    // 版本中某个路径上的文件object哈希，不存在这个文件时返回null
+    public synchronized String lookup(String rootHash, String path) {
+        if (!open()) return null;
+        try {
+            Long root = roots.get(rootHash);
+            if (root == null) root = build(rootHash);
+            if (root == null) return null;
+
+            int slot = slotOf(path);
+            Long mid = child(root, slot >>> FANOUT_BITS);
+            Long leaf = mid == null ? null : child(mid, slot & (FANOUT - 1));
+            return leaf == null ? null : findInLeaf(leaf, path.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.error(e);
+            return null;
+        }
+    }
+
+    // 版本中的全部文件，按路径排序
+    public synchronized TreeMap<String, String> listFiles(String rootHash) {
+        TreeMap<String, String> files = new TreeMap<>();
+        if (!open()) return files;
+        try {
+            Long root = roots.get(rootHash);
+            if (root == null) root = build(rootHash);
+            if (root == null) return files;
+            for (long mid : children(root))
+                for (long leaf : children(mid)) readLeaf(leaf, files);
+        } catch (IOException e) {
+            log.error(e);
+        }
+        return files;
+    }
+
+    // 删除版本之后，被引用的节点不到文件大小的一半时重写索引文件，只保留liveRoots这些版本的索引
+    public synchronized void prune(Collection<String> liveRoots) {
+        if (!open()) return;
+        try {
+            TreeSet<Long> live = new TreeSet<>();
+            long liveBytes = 0;
+            for (String rootHash : liveRoots) {
+                Long root = roots.get(rootHash);
+                if (root == null || !live.add(root)) continue;
+                liveBytes += recordSize(root);
+                for (long mid : children(root)) {
+                    if (!live.add(mid)) continue;
+                    liveBytes += recordSize(mid);
+                    for (long leaf : children(mid))
+                        if (live.add(leaf)) liveBytes += recordSize(leaf);
+                }
+            }
+            if (liveBytes * 2 >= file.size() - HEADER_SIZE) return;
+            rewrite(liveRoots, live);
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+
+    private Long addLocked(String rootHash, Map<String, String> files) throws IOException {
+        // 按散列值把文件分到叶子格中，每格按路径排序
+        TreeMap<Integer, TreeMap<String, String>> slots = new TreeMap<>();
+        for (Map.Entry<String, String> entry : files.entrySet())
+            slots.computeIfAbsent(slotOf(entry.getKey()), k -> new TreeMap<>()).put(entry.getKey(), entry.getValue());
+
+        long[][] midChildren = new long[FANOUT][];
+        for (int m = 0; m < FANOUT; m++) {
+            long[] leaves = new long[FANOUT];
+            Arrays.fill(leaves, -1);
+            boolean any = false;
+            for (Map.Entry<Integer, TreeMap<String, String>> slot : slots.subMap(m << FANOUT_BITS, (m + 1) << FANOUT_BITS).entrySet()) {
+                leaves[slot.getKey() & (FANOUT - 1)] = store(TYPE_LEAF, encodeLeaf(slot.getValue()));
+                any = true;
+            }
+            if (any) midChildren[m] = leaves;
+        }
+        long[] mids = new long[FANOUT];
+        for (int m = 0; m < FANOUT; m++) mids[m] = midChildren[m] == null ? -1 : store(TYPE_INNER, encodeInner(midChildren[m]));
+        long root = store(TYPE_INNER, encodeInner(mids));
+
+        ByteBuffer mapping = ByteBuffer.allocate(PackStore.HASH_SIZE + 8).put(PackStore.hexToBytes(rootHash)).putLong(root);
+        append(TYPE_ROOT, mapping.array());
+        roots.put(rootHash, root);
+        return root;
+    }
+
+    // 还没有索引的版本（例如建立索引之前保存的）：遍历它的目录object补建；根目录object不存在时返回null
+    private Long build(String rootHash) throws IOException {
+        if (ASD.getObjectContentByHash(rootHash) == null) return null;
+        TreeMap<String, String> files = new TreeMap<>();
+        ArrayList<String[]> pending = new ArrayList<>(); // {目录哈希, 相对路径}
+        pending.add(new String[]{rootHash, ""});
+        while (!pending.isEmpty()) {
+            String[] dir = pending.remove(pending.size() - 1);
+            String content = ASD.getObjectContentByHash(dir[0]);
+            if (content == null) continue;
+            for (String entry : content.substring(content.indexOf('\0') + 1).split("\n")) {
+                String[] parts = entry.split("\0");
+                if (parts.length != 3) continue;
+                String path = dir[1].isEmpty() ? parts[2] : dir[1] + '/' + parts[2];
+                if (parts[1].equals("DIR")) pending.add(new String[]{parts[0], path});
+                else files.put(path, parts[0]);
+            }
+        }
+        return addLocked(rootHash, files);
+    }
+
+    // 路径的散列值，取高12位作为叶子格的编号
+    private static int slotOf(String path) {
+        int h = path.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h >>> (32 - 2 * FANOUT_BITS);
+    }
+
+    private static byte[] encodeInner(long[] children) {
+        long bitmap = 0;
+        int count = 0;
+        for (int i = 0; i < FANOUT; i++) {
+            if (children[i] >= 0) {
+                bitmap |= 1L << i;
+                count++;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8 + count * 8).putLong(bitmap);
+        for (long child : children) if (child >= 0) buffer.putLong(child);
+        return buffer.array();
+    }
+
+    private static byte[] encodeLeaf(TreeMap<String, String> entries) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarInt(out, entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            byte[] path = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, path.length);
+            out.write(path, 0, path.length);
+            out.write(PackStore.hexToBytes(entry.getValue()), 0, PackStore.HASH_SIZE);
+        }
+        return out.toByteArray();
+    }
+
+    // 内部节点第index个格子的子节点偏移，格子为空时返回null
+    private Long child(long offset, int index) throws IOException {
+        ByteBuffer node = readNode(offset);
+        long bitmap = node.getLong(1);
+        if ((bitmap & (1L << index)) == 0) return null;
+        return node.getLong(1 + 8 + Long.bitCount(bitmap & ((1L << index) - 1)) * 8);
+    }
+
+    private long[] children(long offset) throws IOException {
+        ByteBuffer node = readNode(offset);
+        long[] children = new long[Long.bitCount(node.getLong(1))];
+        for (int i = 0; i < children.length; i++) children[i] = node.getLong(1 + 8 + i * 8);
+        return children;
+    }
+
+    private String findInLeaf(long offset, byte[] path) throws IOException {
+        ByteBuffer leaf = readNode(offset).position(1);
+        int count = readVarInt(leaf);
+        for (int i = 0; i < count; i++) {
+            int length = readVarInt(leaf);
+            boolean found = length == path.length && leaf.slice(leaf.position(), length).equals(ByteBuffer.wrap(path));
+            leaf.position(leaf.position() + length);
+            if (found) {
+                byte[] hash = new byte[PackStore.HASH_SIZE];
+                leaf.get(hash);
+                return PackStore.bytesToHex(hash);
+            }
+            leaf.position(leaf.position() + PackStore.HASH_SIZE);
+        }
+        return null;
+    }
+
+    private void readLeaf(long offset, Map<String, String> files) throws IOException {
+        ByteBuffer leaf = readNode(offset).position(1);
+        int count = readVarInt(leaf);
+        byte[] hash = new byte[PackStore.HASH_SIZE];
+        for (int i = 0; i < count; i++) {
+            byte[] path = new byte[readVarInt(leaf)];
+            leaf.get(path);
+            leaf.get(hash);
+            files.put(new String(path, StandardCharsets.UTF_8), PackStore.bytesToHex(hash));
+        }
+    }
+
+    // 读取一个节点记录（类型和内容，不含长度），返回只读的副本；节点写入后不会改变，可以缓存
+    private ByteBuffer readNode(long offset) throws IOException {
+        ByteBuffer cached = nodeCache.get(offset);
+        if (cached == null) {
+            int length = readFully(offset, 4).getInt();
+            cached = readFully(offset + 4, length);
+            nodeCache.put(offset, cached);
+        }
+        return cached.asReadOnlyBuffer();
+    }
+
+    private long recordSize(long offset) throws IOException {
+        return 4 + readNode(offset).remaining();
+    }
+
+    // 写入一个节点，内容相同的节点只写一次
+    private long store(byte type, byte[] payload) throws IOException {
+        String key = nodeKey(type, payload);
+        Long existing = nodes.get(key);
+        if (existing != null) return existing;
+        long offset = append(type, payload);
+        nodes.put(key, offset);
+        return offset;
+    }
+
+    private String nodeKey(byte type, byte[] payload) {
+        byte[] content = new byte[1 + payload.length];
+        content[0] = type;
+        System.arraycopy(payload, 0, content, 1, payload.length);
+        return ASD.sha256(content);
+    }
+
+    private long append(byte type, byte[] payload) throws IOException {
+        long offset = file.size();
+        ByteBuffer record = ByteBuffer.allocate(4 + 1 + payload.length).putInt(1 + payload.length).put(type).put(payload);
+        record.flip();
+        writeFully(file, record, offset);
+        return offset;
+    }
+
+    // 第一次使用时扫描索引文件，重建节点去重表和版本映射；截掉崩溃时写了一半的记录
+    private boolean open() {
+        if (file != null) return true;
+        if (!Files.isDirectory(getAutosaveDir())) return false;
+        try {
+            file = FileChannel.open(getIndexFile(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            load();
+            return true;
+        } catch (IOException e) {
+            log.error(e);
+            close();
+            return false;
+        }
+    }
+
+    private void load() throws IOException {
+        nodes.clear();
+        roots.clear();
+        nodeCache.clear();
+        long size = file.size();
+        if (size < HEADER_SIZE || readFully(0, 4).getInt() != MAGIC || readFully(4, 4).getInt() != FORMAT_VERSION) {
+            file.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION);
+            header.flip();
+            writeFully(file, header, 0);
+            return;
+        }
+
+        long offset = HEADER_SIZE;
+        while (offset + 4 <= size) {
+            int length = readFully(offset, 4).getInt();
+            if (length < 1 || offset + 4 + length > size) break;
+            ByteBuffer record = readFully(offset + 4, length);
+            byte type = record.get();
+            byte[] payload = new byte[length - 1];
+            record.get(payload);
+            if (type == TYPE_ROOT) {
+                ByteBuffer mapping = ByteBuffer.wrap(payload);
+                byte[] rootHash = new byte[PackStore.HASH_SIZE];
+                mapping.get(rootHash);
+                roots.put(PackStore.bytesToHex(rootHash), mapping.getLong());
+            } else {
+                nodes.put(nodeKey(type, payload), offset);
+            }
+            offset += 4 + length;
+        }
+        if (offset < size) {
+            log.warn("truncated incomplete record at the end of path index");
+            file.truncate(offset);
+        }
+    }
+
+    // 按原来的顺序复制仍被引用的节点（子节点总是先于父节点写入），改写内部节点中的偏移，最后写入版本映射
+    private void rewrite(Collection<String> liveRoots, TreeSet<Long> live) throws IOException {
+        Path tmp = getIndexFile().resolveSibling("PATHS.idx.tmp");
+        HashMap<Long, Long> moved = new HashMap<>();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION);
+            header.flip();
+            writeFully(out, header, 0);
+            long position = HEADER_SIZE;
+            for (long offset : live) {
+                ByteBuffer node = readNode(offset);
+                ByteBuffer copy = ByteBuffer.allocate(4 + node.remaining()).putInt(node.remaining()).put(node);
+                if (copy.get(4) == TYPE_INNER) {
+                    for (int i = 4 + 1 + 8; i < copy.capacity(); i += 8) copy.putLong(i, moved.get(copy.getLong(i)));
+                }
+                copy.flip();
+                writeFully(out, copy, position);
+                moved.put(offset, position);
+                position += copy.limit();
+            }
+            for (String rootHash : liveRoots) {
+                Long root = roots.get(rootHash);
+                if (root == null) continue;
+                ByteBuffer mapping = ByteBuffer.allocate(4 + 1 + PackStore.HASH_SIZE + 8)
+                        .putInt(1 + PackStore.HASH_SIZE + 8).put(TYPE_ROOT).put(PackStore.hexToBytes(rootHash)).putLong(moved.get(root));
+                mapping.flip();
+                writeFully(out, mapping, position);
+                position += mapping.limit();
+            }
+        }
+        close();
+        Files.move(tmp, getIndexFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (!open()) throw new IOException("Failed to reopen path index");
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of path index");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private synchronized void close() {
+        if (file != null) try {
+            file.close();
+        } catch (IOException e) {
+            log.error(e);
+        }
+        file = null;
+    }
+
+    @Override
+    public void dispose() {
+        close();
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.tr303.autosave;
+
+import java.util.Arrays;
+
+// 以32字节原始哈希为键的引用计数表：开放寻址、线性探测，键和计数分别存放在两个连续数组中
+// 每个槽只占36字节，远小于以64位十六进制字符串为键、装箱计数的HashMap条目
+// 删除时把后续同一探测链上的条目前移，不留墓碑；计数为0表示空槽
+final class RefCountMap {
+    private static final int KEY_SIZE = PackStore.HASH_SIZE;
+    private static final int MIN_CAPACITY = 1024;
+
+    private byte[] keys;
+    private int[] counts;
+    private int mask;
+    private int size = 0;
+
+    RefCountMap() {
+        this(MIN_CAPACITY);
+    }
+
+    RefCountMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2L) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new byte[capacity * KEY_SIZE];
+        counts = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(byte[] key) {
+        int slot = find(key);
+        return slot < 0 ? 0 : counts[slot];
+    }
+
+    // 计数加上delta并返回新的计数；降到0及以下时删除该条目
+    int add(byte[] key, int delta) {
+        int slot = find(key);
+        if (slot >= 0) {
+            int count = counts[slot] + delta;
+            if (count > 0) counts[slot] = count;
+            else removeAt(slot);
+            return Math.max(count, 0);
+        }
+        if (delta <= 0) return 0;
+        if ((size + 1) * 4L > counts.length * 3L) {
+            rehash(counts.length * 2);
+        }
+        slot = ~find(key);
+        System.arraycopy(key, 0, keys, slot * KEY_SIZE, KEY_SIZE);
+        counts[slot] = delta;
+        size++;
+        return delta;
+    }
+
+    // 依次访问所有条目，key数组在回调之间会被复用
+    void forEach(Visitor visitor) {
+        byte[] key = new byte[KEY_SIZE];
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] == 0) continue;
+            System.arraycopy(keys, slot * KEY_SIZE, key, 0, KEY_SIZE);
+            visitor.visit(key, counts[slot]);
+        }
+    }
+
+    interface Visitor {
+        void visit(byte[] key, int count);
+    }
+
+    // 找到key所在的槽；不存在时返回~(可插入的空槽)
+    private int find(byte[] key) {
+        int slot = home(key, 0);
+        while (counts[slot] != 0) {
+            if (Arrays.equals(keys, slot * KEY_SIZE, slot * KEY_SIZE + KEY_SIZE, key, 0, KEY_SIZE)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return ~slot;
+    }
+
+    // 键本身是SHA-256，取前4个字节作为散列值即可
+    private int home(byte[] array, int offset) {
+        return ((array[offset] & 0xff) << 24 | (array[offset + 1] & 0xff) << 16 | (array[offset + 2] & 0xff) << 8 | (array[offset + 3] & 0xff)) & mask;
+    }
+
+    private void removeAt(int slot) {
+        counts[slot] = 0;
+        size--;
+        // 把后面探测链上、本该在空槽位置或之前的条目前移
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (counts[next] != 0) {
+            int home = home(keys, next * KEY_SIZE);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                System.arraycopy(keys, next * KEY_SIZE, keys, hole * KEY_SIZE, KEY_SIZE);
+                counts[hole] = counts[next];
+                counts[next] = 0;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void rehash(int capacity) {
+        byte[] oldKeys = keys;
+        int[] oldCounts = counts;
+        allocate(capacity);
+        byte[] key = new byte[KEY_SIZE];
+        for (int slot = 0; slot < oldCounts.length; slot++) {
+            if (oldCounts[slot] == 0) continue;
+            System.arraycopy(oldKeys, slot * KEY_SIZE, key, 0, KEY_SIZE);
+            int target = ~find(key);
+            System.arraycopy(key, 0, keys, target * KEY_SIZE, KEY_SIZE);
+            counts[target] = oldCounts[slot];
+        }
+    }
+}
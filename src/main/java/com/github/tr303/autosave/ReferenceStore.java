@@ -0,0 +1,259 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+// 持久化的object引用计数：REFERENCES.ckpt是某一时刻全部计数的快照，之后的每次增减追加到REFERENCES.journal
+// 一次保存或删除只追加本次变化的记录，不再重写全部计数；日志变长后写一次新的快照并清空日志
+// 快照和日志头部都带有代数，只有代数相同的日志才会被重放，写完新快照后崩溃也不会把旧日志重放两次
+public class ReferenceStore implements Disposable {
+    private static final int CHECKPOINT_MAGIC = 0x41535243; // "ASRC"
+    private static final int JOURNAL_MAGIC = 0x4153524A; // "ASRJ"
+    private static final int FORMAT_VERSION = 1;
+    private static final int CHECKPOINT_HEADER_SIZE = 4 + 4 + 8 + 4; // magic | version | 代数 | 条目数
+    private static final int JOURNAL_HEADER_SIZE = 4 + 4 + 8; // magic | version | 代数
+    private static final int ENTRY_SIZE = PackStore.HASH_SIZE + 4; // hash | 计数（日志中为增量）
+    private static final int MIN_CHECKPOINT_RECORDS = 64 << 10; // 日志记录数超过这个值且超过条目数时写快照
+
+    private final Project project;
+    private final Logger log = Logger.getInstance(ReferenceStore.class);
+
+    private RefCountMap counts;
+    private FileChannel journal;
+    private long generation;
+    private long journalRecords = 0;
+
+    public ReferenceStore(Project project) {
+        this.project = project;
+    }
+
+    private Path getAutosaveDir() {
+        return Path.of(project.getBasePath(), ".autosave");
+    }
+
+    private Path getCheckpointFile() {
+        return getAutosaveDir().resolve("REFERENCES.ckpt");
+    }
+
+    private Path getJournalFile() {
+        return getAutosaveDir().resolve("REFERENCES.journal");
+    }
+
+    // 某个object当前的引用计数，没有记录时为0
+    public synchronized int get(String hash) {
+        if (!open()) return 0;
+        return counts.get(PackStore.hexToBytes(hash));
+    }
+
+    // 按二进制哈希查询计数，供垃圾回收逐个检查object时使用
+    public synchronized int get(byte[] key) {
+        if (!open()) return 0;
+        return counts.get(key);
+    }
+
+    // 提交一次操作中的全部增减：先写日志再修改内存中的计数
+    public synchronized Boolean commit(Map<String, Integer> changes) {
+        if (!open()) return null;
+        ByteBuffer records = ByteBuffer.allocate(changes.size() * ENTRY_SIZE);
+        for (Map.Entry<String, Integer> change : changes.entrySet()) {
+            if (change.getValue() == 0) continue;
+            records.put(PackStore.hexToBytes(change.getKey())).putInt(change.getValue());
+        }
+        records.flip();
+        int recordCount = records.remaining() / ENTRY_SIZE;
+        try {
+            writeFully(journal, records, journal.size());
+        } catch (IOException e) {
+            log.error(e);
+            return false;
+        }
+
+        for (Map.Entry<String, Integer> change : changes.entrySet())
+            if (change.getValue() != 0) counts.add(PackStore.hexToBytes(change.getKey()), change.getValue());
+        journalRecords += recordCount;
+
+        if (journalRecords > MIN_CHECKPOINT_RECORDS && journalRecords > counts.size()) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                log.error(e); // 日志仍然完整，下次再写快照
+            }
+        }
+        return true;
+    }
+
+    // 用垃圾回收重新计算出的计数替换当前全部计数，并立即写成新的快照
+    public synchronized void replaceAll(RefCountMap newCounts) {
+        if (!open()) return;
+        counts = newCounts;
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+
+    // 依次访问所有引用计数大于0的object
+    public synchronized void forEach(RefCountMap.Visitor visitor) {
+        if (open()) counts.forEach(visitor);
+    }
+
+    public synchronized int size() {
+        return open() ? counts.size() : 0;
+    }
+
+    // 第一次使用时载入快照并重放日志；还没有快照时导入旧版本的REFERENCES文本文件
+    private boolean open() {
+        if (journal != null) return true;
+        if (!Files.isDirectory(getAutosaveDir())) return false;
+        try {
+            if (Files.exists(getCheckpointFile())) loadCheckpoint();
+            else importLegacyReferences();
+
+            journal = FileChannel.open(getJournalFile(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            replayJournal();
+            return true;
+        } catch (IOException e) {
+            log.error(e);
+            close();
+            counts = null;
+            return false;
+        }
+    }
+
+    private void loadCheckpoint() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(getCheckpointFile()));
+        if (buffer.remaining() < CHECKPOINT_HEADER_SIZE || buffer.getInt() != CHECKPOINT_MAGIC || buffer.getInt() != FORMAT_VERSION)
+            throw new IOException("Unsupported reference checkpoint " + getCheckpointFile());
+        generation = buffer.getLong();
+        int count = buffer.getInt();
+        if (buffer.remaining() != (long) count * ENTRY_SIZE)
+            throw new IOException("Corrupted reference checkpoint " + getCheckpointFile());
+
+        counts = new RefCountMap(count);
+        byte[] key = new byte[PackStore.HASH_SIZE];
+        for (int i = 0; i < count; i++) {
+            buffer.get(key);
+            counts.add(key, buffer.getInt());
+        }
+    }
+
+    // 旧版本的REFERENCES文件每行为 哈希\0计数
+    private void importLegacyReferences() throws IOException {
+        Path legacy = getAutosaveDir().resolve("REFERENCES");
+        counts = new RefCountMap();
+        if (Files.exists(legacy)) {
+            for (String line : Files.readString(legacy, StandardCharsets.UTF_8).split("\n")) {
+                String[] parts = line.split("\0");
+                if (parts.length == 2 && PackStore.isValidHash(parts[0]))
+                    counts.add(PackStore.hexToBytes(parts[0]), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        generation = 0;
+        writeCheckpoint(1);
+        if (Files.exists(legacy)) Files.delete(legacy);
+        if (counts.size() > 0) log.info("imported " + counts.size() + " reference counts");
+    }
+
+    // 重放与快照同一代的日志，截掉崩溃时写了一半的记录；代数不同的日志已经包含在快照中
+    private void replayJournal() throws IOException {
+        long size = journal.size();
+        boolean current = false;
+        if (size >= JOURNAL_HEADER_SIZE) {
+            ByteBuffer header = readFully(journal, 0, JOURNAL_HEADER_SIZE);
+            current = header.getInt() == JOURNAL_MAGIC && header.getInt() == FORMAT_VERSION && header.getLong() == generation;
+        }
+        if (!current) {
+            resetJournal();
+            return;
+        }
+
+        long records = (size - JOURNAL_HEADER_SIZE) / ENTRY_SIZE;
+        long end = JOURNAL_HEADER_SIZE + records * ENTRY_SIZE;
+        if (end < size) {
+            log.warn("truncated incomplete record at the end of reference journal");
+            journal.truncate(end);
+        }
+        byte[] key = new byte[PackStore.HASH_SIZE];
+        final int batch = 4096;
+        for (long done = 0; done < records; done += batch) {
+            int n = (int) Math.min(batch, records - done);
+            ByteBuffer buffer = readFully(journal, JOURNAL_HEADER_SIZE + done * ENTRY_SIZE, n * ENTRY_SIZE);
+            for (int i = 0; i < n; i++) {
+                buffer.get(key);
+                counts.add(key, buffer.getInt());
+            }
+        }
+        journalRecords = records;
+    }
+
+    // 写出当前全部计数作为新一代快照，然后换成一个空的新日志
+    private void checkpoint() throws IOException {
+        writeCheckpoint(generation + 1);
+        resetJournal();
+    }
+
+    private void writeCheckpoint(long newGeneration) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_HEADER_SIZE + counts.size() * ENTRY_SIZE);
+        buffer.putInt(CHECKPOINT_MAGIC).putInt(FORMAT_VERSION).putLong(newGeneration).putInt(counts.size());
+        counts.forEach((key, count) -> buffer.put(key).putInt(count));
+        buffer.flip();
+
+        Path tmp = getCheckpointFile().resolveSibling("REFERENCES.ckpt.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, buffer, 0);
+            out.force(false);
+        }
+        Files.move(tmp, getCheckpointFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation = newGeneration;
+    }
+
+    private void resetJournal() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE).putInt(JOURNAL_MAGIC).putInt(FORMAT_VERSION).putLong(generation);
+        header.flip();
+        if (journal == null)
+            journal = FileChannel.open(getJournalFile(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        journal.truncate(0);
+        writeFully(journal, header, 0);
+        journalRecords = 0;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) channel.write(buffer, start + buffer.position());
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of reference journal");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private synchronized void close() {
+        if (journal != null) try {
+            journal.close();
+        } catch (IOException e) {
+            log.error(e);
+        }
+        journal = null;
+    }
+
+    @Override
+    public void dispose() {
+        close();
+    }
+}
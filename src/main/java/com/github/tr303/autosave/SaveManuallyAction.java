@@ -6,11 +6,16 @@ import com.intellij.notification.Notifications;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import org.jetbrains.annotations.NotNull;
 
 public class SaveManuallyAction extends AnAction {
+    private final Logger log = Logger.getInstance(SaveManuallyAction.class);
+
     @Override
     public void actionPerformed(@NotNull AnActionEvent e) {
         Project project = e.getProject();
@@ -23,14 +28,27 @@ public class SaveManuallyAction extends AnAction {
         Notification notification = new Notification("AutoSaveNotifications", "Saving current version", "Please wait...", NotificationType.INFORMATION);
         Notifications.Bus.notify(notification, project);
 
-        Boolean result = new AutoSaveFunctional(project).saveCurrentProjectAsVersion("User Quick Saved");
+        // 保存在后台进行，后台的自动保存或清理正在进行时只需等待它们结束，不会卡住界面
+        new Task.Backgroundable(project, "Saving current version") {
+            private Boolean result;
 
-        if (result != null && result) {
-            notification.setContent("Succeed！");
-        } else {
-            notification.setContent("Failed！There is nothing to save");
-        }
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setIndeterminate(true);
+                result = new AutoSaveFunctional(project).saveCurrentProjectAsVersion("User Quick Saved");
+            }
 
-        Notifications.Bus.notify(notification, project);
+            @Override
+            public void onSuccess() {
+                if (result != null && result) {
+                    notification.setContent("Succeed！");
+                    // 缓存命中情况只写入日志，压缩率显示在设置页面中
+                    log.info(project.getService(ObjectCache.class).getSummary());
+                } else {
+                    notification.setContent("Failed！There is nothing to save");
+                }
+                Notifications.Bus.notify(notification, project);
+            }
+        }.queue();
     }
 }
@@ -0,0 +1,266 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+// 保存引擎：在大小等于CPU核数的fork-join线程池中并行计算兄弟子树的哈希
+// 每个目录仍按子项原有顺序拼装内容，因此根哈希与顺序遍历的结果完全一致
+class SnapshotEngine {
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final Logger log = Logger.getInstance(SnapshotEngine.class);
+    private final AutoSaveData ASD;
+    private final WorkingTreeIndex index;
+    private final SnapshotFilter filter;
+    private final AutoSaveData.ReferenceCounter rc; // 并行阶段只读，引用计数的增加在最后统一执行
+    private final ConcurrentSkipListMap<String, WorkingTreeIndex.Entry> newEntries;
+    private final Set<String> created = ConcurrentHashMap.newKeySet(); // 本次保存新写入的目录和块列表object
+    private final ConcurrentLinkedQueue<String> increments = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<String> writtenFiles = new ConcurrentLinkedQueue<>(); // 本次保存重新读取并写入的文件object
+    private final long startTime = System.currentTimeMillis();
+
+    SnapshotEngine(AutoSaveData ASD, WorkingTreeIndex index, SnapshotFilter filter, AutoSaveData.ReferenceCounter rc, ConcurrentSkipListMap<String, WorkingTreeIndex.Entry> newEntries) {
+        this.ASD = ASD;
+        this.index = index;
+        this.filter = filter;
+        this.rc = rc;
+        this.newEntries = newEntries;
+    }
+
+    ConcurrentSkipListMap<String, WorkingTreeIndex.Entry> getNewEntries() {
+        return newEntries;
+    }
+
+    ConcurrentLinkedQueue<String> getWrittenFiles() {
+        return writtenFiles;
+    }
+
+    // 保存得到的版本中每个文件的路径和object哈希，用于建立路径索引
+    TreeMap<String, String> getVersionFiles() {
+        TreeMap<String, String> files = new TreeMap<>();
+        for (Map.Entry<String, WorkingTreeIndex.Entry> entry : newEntries.entrySet())
+            if (!entry.getValue().isDir) files.put(entry.getKey(), entry.getValue().hash);
+        return files;
+    }
+
+    // 完整遍历项目，返回根目录object的哈希
+    String saveTree(VirtualFile projectDir) {
+        return finish(POOL.invoke(new TreeTask(projectDir, "", null)));
+    }
+
+    // 增量保存：只重建dirtyPaths所在路径上的目录
+    String saveChangedPaths(VirtualFile projectDir, String previousRoot, TreeSet<String> dirtyPaths) {
+        return finish(POOL.invoke(new ChangedPathsTask(projectDir, "", null, previousRoot, dirtyPaths)));
+    }
+
+    private String finish(String rootHash) {
+        for (String hash : increments) rc.increment(hash);
+        return rootHash;
+    }
+
+    // 已经被某个版本或目录引用的object不需要再次写入
+    private boolean isStored(String hash) {
+        return rc.isReferenced(hash) || created.contains(hash);
+    }
+
+    private static String childPath(String path, VirtualFile child) {
+        return path.isEmpty() ? child.getName() : path + '/' + child.getName();
+    }
+
+    // 目录的忽略规则，parentRules为null表示项目根目录
+    private SnapshotFilter.Rules rulesFor(VirtualFile dir, String path, SnapshotFilter.Rules parentRules) {
+        return parentRules == null ? filter.rootRules(dir) : filter.rulesFor(dir, path, parentRules);
+    }
+
+    // 列出需要保存的子项，被忽略的子项（包括整个目录）在读取之前就被跳过
+    private ArrayList<VirtualFile> listChildren(VirtualFile dir, String path, SnapshotFilter.Rules rules) {
+        ArrayList<VirtualFile> children = new ArrayList<>();
+        for (VirtualFile child : dir.getChildren())
+            if (!filter.isIgnored(child, childPath(path, child), rules)) children.add(child);
+        return children;
+    }
+
+    // 大小和修改时间未变的文件直接复用索引中的哈希，否则读取并保存
+    // 无法读取又没有保存过的文件返回null，不出现在这个版本中
+    private String saveFile(VirtualFile file, String path) {
+        WorkingTreeIndex.Entry previous = index.get(path);
+        if (previous != null && previous.matches(file) && isStored(previous.hash)) {
+            newEntries.put(path, previous);
+            return previous.hash;
+        }
+
+        String finalHash;
+        try {
+            if (ASD.shouldChunk(file)) finalHash = saveChunkedFile(file);
+            else finalHash = ASD.saveFileObject(file, previous != null && !previous.isDir ? previous.hash : null);
+        } catch (IOException e) {
+            // 文件无法读取（例如保存期间被删除），沿用上次保存的内容
+            log.warn("failed to read " + path, e);
+            if (previous != null && !previous.isDir && isStored(previous.hash)) {
+                newEntries.put(path, previous);
+                return previous.hash;
+            }
+            // 不能用空内容代替，否则回溯或恢复时会用空文件覆盖真实的内容
+            return null;
+        }
+        newEntries.put(path, WorkingTreeIndex.Entry.forFile(file, finalHash, startTime));
+        writtenFiles.add(finalHash);
+        return finalHash;
+    }
+
+    // 切块保存一个大文件；和目录一样，只有第一次写入列表object的任务为其中的块增加引用计数
+    private String saveChunkedFile(VirtualFile file) throws IOException {
+        AutoSaveData.ChunkedFile chunked = ASD.saveFileChunks(file);
+        if (!rc.isReferenced(chunked.hash) && created.add(chunked.hash)) {
+            ASD.saveObjectWithHash(chunked.content, chunked.hash);
+            increments.addAll(chunked.chunkHashes);
+        }
+        return chunked.hash;
+    }
+
+    // 并行执行子任务，按子项顺序填入哈希
+    private static void joinChildren(ArrayList<ForkJoinTask<String>> tasks, String[] childHashes) {
+        ForkJoinTask.invokeAll(tasks.stream().filter(task -> task != null).toList());
+        for (int i = 0; i < childHashes.length; i++)
+            if (tasks.get(i) != null) childHashes[i] = tasks.get(i).join();
+    }
+
+    // 写入一个目录object；只有第一次写入它的任务为其子项增加引用计数
+    // 没有哈希的子项（无法读取的新文件）不写入，索引中的子项数随之变少，下次保存时这个目录会重新检查
+    private String saveDirectoryObject(VirtualFile dir, String path, ArrayList<VirtualFile> children, String[] childHashes) {
+        StringBuilder dirContent = new StringBuilder();
+        int count = 0;
+        for (int i = 0; i < childHashes.length; i++) {
+            if (childHashes[i] == null) continue;
+            VirtualFile child = children.get(i);
+            dirContent.append(childHashes[i]).append(child.isDirectory() ? "\0DIR\0" : "\0FIL\0").append(child.getName()).append('\n');
+            count++;
+        }
+
+        byte[] finalContent = ASD.addPrefix(String.valueOf(dirContent), dir.getName(), true).getBytes(StandardCharsets.UTF_8);
+        String finalHash = ASD.sha256(finalContent);
+        if (!rc.isReferenced(finalHash) && created.add(finalHash)) {
+            ASD.saveObjectWithHash(finalContent, finalHash);
+            for (String childHash : childHashes) if (childHash != null) increments.add(childHash);
+        }
+        newEntries.put(path, WorkingTreeIndex.Entry.forDirectory(count, finalHash));
+        return finalHash;
+    }
+
+    // 完整遍历一个子树；子项全部未变的目录直接复用索引中的哈希
+    private class TreeTask extends RecursiveTask<String> {
+        private final VirtualFile file;
+        private final String path;
+        private final SnapshotFilter.Rules parentRules;
+
+        TreeTask(VirtualFile file, String path, SnapshotFilter.Rules parentRules) {
+            this.file = file;
+            this.path = path;
+            this.parentRules = parentRules;
+        }
+
+        @Override
+        protected String compute() {
+            if (!file.isDirectory()) return saveFile(file, path);
+
+            SnapshotFilter.Rules rules = rulesFor(file, path, parentRules);
+            ArrayList<VirtualFile> children = listChildren(file, path, rules);
+            String[] childHashes = new String[children.size()];
+            ArrayList<ForkJoinTask<String>> tasks = new ArrayList<>();
+            for (int i = 0; i < children.size(); i++) {
+                VirtualFile child = children.get(i);
+                String childPath = childPath(path, child);
+                WorkingTreeIndex.Entry childPrevious = index.get(childPath);
+                if (!child.isDirectory() && childPrevious != null && childPrevious.matches(child) && isStored(childPrevious.hash)) {
+                    // 未修改的文件不值得单独开一个任务
+                    newEntries.put(childPath, childPrevious);
+                    childHashes[i] = childPrevious.hash;
+                    tasks.add(null);
+                } else tasks.add(new TreeTask(child, childPath, rules));
+            }
+            joinChildren(tasks, childHashes);
+
+            WorkingTreeIndex.Entry previous = index.get(path);
+            boolean unchanged = previous != null && previous.isDir && previous.length == children.size() && isStored(previous.hash);
+            for (int i = 0; unchanged && i < children.size(); i++) {
+                VirtualFile child = children.get(i);
+                WorkingTreeIndex.Entry childPrevious = index.get(childPath(path, child));
+                if (childPrevious == null || childPrevious.isDir != child.isDirectory() || !childPrevious.hash.equals(childHashes[i]))
+                    unchanged = false;
+            }
+            if (unchanged) {
+                newEntries.put(path, previous);
+                return previous.hash;
+            }
+
+            return saveDirectoryObject(file, path, children, childHashes);
+        }
+    }
+
+    // 沿变化的路径递归，其余子项直接复用上一个版本中的哈希
+    private class ChangedPathsTask extends RecursiveTask<String> {
+        private final VirtualFile dir;
+        private final String path;
+        private final SnapshotFilter.Rules parentRules;
+        private final String previousHash;
+        private final TreeSet<String> dirtyPaths;
+
+        ChangedPathsTask(VirtualFile dir, String path, SnapshotFilter.Rules parentRules, String previousHash, TreeSet<String> dirtyPaths) {
+            this.dir = dir;
+            this.path = path;
+            this.parentRules = parentRules;
+            this.previousHash = previousHash;
+            this.dirtyPaths = dirtyPaths;
+        }
+
+        @Override
+        protected String compute() {
+            String objectContent = ASD.getObjectContentByHash(previousHash);
+            // 上一版本的目录object缺失时无法复用，和没有上一版本时一样完整遍历这个子树
+            if (objectContent == null) return new TreeTask(dir, path, parentRules).compute();
+
+            HashMap<String, String[]> previousEntries = new HashMap<>();
+            for (String entry : objectContent.substring(objectContent.indexOf('\0') + 1).split("\n")) {
+                String[] parts = entry.split("\0");
+                if (parts.length == 3) previousEntries.put(parts[2], parts);
+            }
+
+            SnapshotFilter.Rules rules = rulesFor(dir, path, parentRules);
+            ArrayList<VirtualFile> children = listChildren(dir, path, rules);
+            String[] childHashes = new String[children.size()];
+            ArrayList<ForkJoinTask<String>> tasks = new ArrayList<>();
+            for (int i = 0; i < children.size(); i++) {
+                VirtualFile child = children.get(i);
+                String childPath = childPath(path, child);
+                String[] previousEntry = previousEntries.get(child.getName());
+                boolean sameType = previousEntry != null && previousEntry[1].equals(child.isDirectory() ? "DIR" : "FIL");
+
+                if (!sameType || dirtyPaths.contains(childPath)) tasks.add(new TreeTask(child, childPath, rules));
+                else if (child.isDirectory() && DirtyPathTracker.containsPathOrDescendant(dirtyPaths, childPath))
+                    tasks.add(new ChangedPathsTask(child, childPath, rules, previousEntry[0], dirtyPaths));
+                else {
+                    childHashes[i] = previousEntry[0];
+                    tasks.add(null);
+                }
+            }
+            joinChildren(tasks, childHashes);
+
+            return saveDirectoryObject(dir, path, children, childHashes);
+        }
+    }
+}
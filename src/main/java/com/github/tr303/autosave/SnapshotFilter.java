@@ -0,0 +1,164 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// 保存时跳过的路径：IDE中被排除的目录、.gitignore和设置中的忽略规则、设置中的扩展名以及超过大小上限的文件
+// 判断只用到名字、路径和VFS中缓存的文件大小，被忽略的目录整棵子树都不会被读取
+class SnapshotFilter {
+    private final Logger log = Logger.getInstance(SnapshotFilter.class);
+    private final ProjectFileIndex fileIndex;
+    private final long maxFileSize;
+    private final Set<String> ignoredExtensions = new HashSet<>();
+    private final boolean useGitIgnore;
+    private final Rules settingsRules;
+
+    SnapshotFilter(Project project) {
+        AutoSaveSettings settings = AutoSaveSettings.getInstance();
+        this.fileIndex = ProjectFileIndex.getInstance(project);
+        this.maxFileSize = settings.getMaxFileSize();
+        for (String extension : settings.getState().ignoredExtensions.split("[;,\\s]+"))
+            if (!extension.isEmpty()) ignoredExtensions.add(extension.replaceFirst("^\\.", "").toLowerCase(Locale.ROOT));
+        this.useGitIgnore = settings.getState().useGitIgnore;
+        this.settingsRules = Rules.EMPTY.with("", List.of(settings.getState().ignoredPatterns.split("[;\\n]")));
+    }
+
+    // 项目根目录的规则
+    Rules rootRules(VirtualFile projectDir) {
+        return rulesFor(projectDir, "", settingsRules);
+    }
+
+    // 某个目录的规则：父目录的规则加上该目录下.gitignore中的规则
+    Rules rulesFor(VirtualFile dir, String path, Rules parentRules) {
+        if (!useGitIgnore) return parentRules;
+        VirtualFile gitIgnore = dir.findChild(".gitignore");
+        if (gitIgnore == null || gitIgnore.isDirectory()) return parentRules;
+        try {
+            String content = new String(gitIgnore.contentsToByteArray(), StandardCharsets.UTF_8);
+            return parentRules.with(path, List.of(content.split("\\r?\\n")));
+        } catch (IOException e) {
+            log.warn("failed to read " + gitIgnore.getPath(), e);
+            return parentRules;
+        }
+    }
+
+    // 在读取之前判断dir下的某个子项是否应当跳过
+    boolean isIgnored(VirtualFile file, String path, Rules rules) {
+        if (file.getName().equals(".autosave")) return true;
+        boolean isDirectory = file.isDirectory();
+        if (!isDirectory) {
+            if (file.getLength() > maxFileSize) return true;
+            String extension = file.getExtension();
+            if (extension != null && ignoredExtensions.contains(extension.toLowerCase(Locale.ROOT))) return true;
+        }
+        if (rules.isIgnored(path, isDirectory)) return true;
+        return ReadAction.compute(() -> fileIndex.isExcluded(file));
+    }
+
+    // 按顺序排列的忽略规则，后面的规则优先；同一目录下的子项共享同一个Rules
+    static class Rules {
+        static final Rules EMPTY = new Rules(new ArrayList<>());
+
+        private final ArrayList<Rule> rules;
+
+        private Rules(ArrayList<Rule> rules) {
+            this.rules = rules;
+        }
+
+        // 加入位于basePath目录下的一组gitignore格式的规则
+        Rules with(String basePath, List<String> lines) {
+            ArrayList<Rule> combined = new ArrayList<>(rules);
+            for (String line : lines) {
+                Rule rule = Rule.parse(basePath, line);
+                if (rule != null) combined.add(rule);
+            }
+            return combined.size() == rules.size() ? this : new Rules(combined);
+        }
+
+        boolean isIgnored(String path, boolean isDirectory) {
+            for (int i = rules.size() - 1; i >= 0; i--) {
+                Rule rule = rules.get(i);
+                if (rule.matches(path, isDirectory)) return !rule.negated;
+            }
+            return false;
+        }
+    }
+
+    private static class Rule {
+        final String basePath; // 规则所在的目录，空串表示项目根目录
+        final Pattern pattern; // 匹配相对于basePath的路径
+        final boolean negated;
+        final boolean directoryOnly;
+
+        Rule(String basePath, Pattern pattern, boolean negated, boolean directoryOnly) {
+            this.basePath = basePath;
+            this.pattern = pattern;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+        }
+
+        static Rule parse(String basePath, String line) {
+            String pattern = line.stripTrailing();
+            if (pattern.isEmpty() || pattern.startsWith("#")) return null;
+            boolean negated = pattern.startsWith("!");
+            if (negated) pattern = pattern.substring(1);
+            if (pattern.startsWith("\\")) pattern = pattern.substring(1); // \#和\!表示字面字符
+            boolean directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) pattern = pattern.substring(0, pattern.length() - 1);
+            boolean anchored = pattern.contains("/"); // 包含/的规则相对于所在目录，否则匹配任意层级的名字
+            if (pattern.startsWith("/")) pattern = pattern.substring(1);
+            if (pattern.isEmpty()) return null;
+
+            String regex = (anchored ? "" : "(?:.*/)?") + globToRegex(pattern);
+            return new Rule(basePath, Pattern.compile(regex), negated, directoryOnly);
+        }
+
+        boolean matches(String path, boolean isDirectory) {
+            if (directoryOnly && !isDirectory) return false;
+            String relative;
+            if (basePath.isEmpty()) relative = path;
+            else if (path.startsWith(basePath + '/')) relative = path.substring(basePath.length() + 1);
+            else return false;
+            return pattern.matcher(relative).matches();
+        }
+
+        private static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && glob.startsWith("**/", i)) {
+                    regex.append("(?:.*/)?");
+                    i += 2;
+                } else if (c == '*' && glob.startsWith("**", i)) {
+                    regex.append(".*");
+                    i++;
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '[' && glob.indexOf(']', i + 1) > i + 1) {
+                    int end = glob.indexOf(']', i + 1);
+                    String set = glob.substring(i + 1, end);
+                    if (set.startsWith("!")) set = "^" + set.substring(1);
+                    regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+                    i = end;
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.tr303.autosave;
+
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+
+// 每个项目.autosave目录的磁盘配额：保存后在后台检查目录大小，超过配额时压缩
+// 压缩先从最旧的自动版本开始删除，直到剩余object估计能回到配额以内，再回收无人引用的object并重新打包pack文件
+// 手动保存、重命名过的版本和最新的版本不删除；压缩在低优先级线程中限速进行，完成后通知压缩前后的大小
+public class StorageQuota implements Disposable {
+    private static final long CHECK_DELAY_SECONDS = 60;
+    private static final int TARGET_PERCENT = 80; // 压缩到配额的这个比例以下，避免每次保存后都再压缩一次
+    private static final int BATCH_PERCENT = 10; // 每批删除剩余候选版本的比例
+
+    private final Project project;
+    private final Logger log = Logger.getInstance(StorageQuota.class);
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> pending;
+
+    public StorageQuota(Project project) {
+        this.project = project;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AutoSave Storage Quota");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    // 保存之后调用；已经有等待中的检查时不重复安排
+    public synchronized void scheduleCheck() {
+        if (AutoSaveSettings.getInstance().getState().storageQuotaMb <= 0) return;
+        if (pending != null && !pending.isDone()) return;
+        pending = executor.schedule(this::enforce, CHECK_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // 超过配额时压缩，返回压缩后的目录大小；没有超过配额时不做任何事
+    long enforce() {
+        if (project.isDisposed()) return 0;
+        try {
+            long quota = (long) AutoSaveSettings.getInstance().getState().storageQuotaMb << 20;
+            long before = directorySize();
+            if (quota <= 0 || before <= quota) return before;
+
+            int pruned = pruneOldest(before, quota * TARGET_PERCENT / 100);
+            ObjectCollector collector = project.getService(ObjectCollector.class);
+            collector.collect();
+            collector.repack();
+            long after = directorySize();
+
+            String content = String.format("Compacted .autosave from %s to %s, removed %d old automatic versions",
+                    formatSize(before), formatSize(after), pruned);
+            log.info(content);
+            boolean overQuota = after > quota;
+            if (overQuota) content += ". Still over the " + formatSize(quota) + " quota: the remaining versions are manual or renamed";
+            Notification notification = new Notification("AutoSaveNotifications", "AutoSave storage compacted", content,
+                    overQuota ? NotificationType.WARNING : NotificationType.INFORMATION);
+            Notifications.Bus.notify(notification, project);
+            return after;
+        } catch (RuntimeException e) {
+            if (!Thread.currentThread().isInterrupted()) log.error(e);
+            return 0;
+        }
+    }
+
+    // 从最旧的自动版本开始分批删除，直到估计的目录大小不超过target，返回删除的版本数
+    // 估计值为pack以外的文件大小加上索引中object的记录大小，即重新打包后的大小
+    // 每一批的估计、选出和删除在同一次互斥中完成，批与批之间让出锁，保存不会被整个清理过程挡住
+    private int pruneOldest(long size, long target) {
+        PackStore packStore = project.getService(PackStore.class);
+        AutoSaveFunctional ASF = new AutoSaveFunctional(project);
+        Lock mutation = project.getService(ObjectCollector.class).mutationLock();
+        long otherBytes = size - packStore.packSize();
+        int pruned = 0;
+        while (true) {
+            mutation.lock();
+            try {
+                if (otherBytes + packStore.liveBytes() <= target) break;
+                List<AutoSaveFunctional.VersionInfo> candidates = selectUnnamed(project.getService(VersionLog.class).getVersions());
+                if (candidates.isEmpty()) break;
+                int batch = Math.max(1, candidates.size() * BATCH_PERCENT / 100);
+                int deleted = ASF.deleteVersions(candidates.subList(0, batch));
+                if (deleted == 0) break;
+                pruned += deleted;
+            } finally {
+                mutation.unlock();
+            }
+        }
+        return pruned;
+    }
+
+    // 可以删除的自动版本，最旧的在前；versions最新的在前，最新的版本是下一次增量保存的基准，不删除
+    static List<AutoSaveFunctional.VersionInfo> selectUnnamed(List<AutoSaveFunctional.VersionInfo> versions) {
+        ArrayList<AutoSaveFunctional.VersionInfo> candidates = new ArrayList<>();
+        for (int i = versions.size() - 1; i >= 1; i--) {
+            if (versions.get(i).tag.startsWith(VersionRetention.AUTO_TAG_PREFIX)) candidates.add(versions.get(i));
+        }
+        return candidates;
+    }
+
+    private long directorySize() {
+        Path dir = Path.of(project.getBasePath(), ".autosave");
+        if (!Files.isDirectory(dir)) return 0;
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> {
+                try {
+                    return Files.size(file);
+                } catch (IOException e) {
+                    return 0; // 统计期间被删除的文件
+                }
+            }).sum();
+        } catch (IOException | UncheckedIOException e) {
+            log.error(e);
+            return 0;
+        }
+    }
+
+    private static String formatSize(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    @Override
+    public void dispose() {
+        executor.shutdownNow();
+    }
+}
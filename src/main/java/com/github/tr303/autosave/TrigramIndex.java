@@ -0,0 +1,515 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+// 文件内容的三元组倒排索引：记录每个文件object中出现过的所有3字节片段（ASCII字母折叠为小写）
+// 搜索时先取出查询一定包含的三元组，求出同时含有这些三元组的文件object，只有这些候选object需要解码比较
+// 新保存的文件object在后台线程中追加进TRIGRAMS.idx，每条记录是一个object的哈希和它的全部三元组；
+// object按内容寻址，记录写入后永远有效。还没有进入索引的object总是作为候选，搜索结果不会因此遗漏
+public class TrigramIndex implements Disposable {
+    private static final int MAGIC = 0x41535447; // "ASTG"
+    private static final int FORMAT_VERSION = 2; // 版本1不区分二进制文件和过大的文件，载入时重新建立
+    private static final int HEADER_SIZE = 4 + 4 + 4; // magic | version | 标志
+    private static final int FLAG_COMPLETE = 1; // 已经为建立索引之前保存的版本补建过索引
+    private static final byte RECORD_INDEXED = 0;
+    private static final byte RECORD_BINARY = 1; // 含有\0的文件，不会被搜索到
+    private static final byte RECORD_OVERSIZED = 2; // 超过大小上限的文件，不记录三元组，搜索时总是读取比较
+    private static final int MAX_INDEXED_BYTES = 4 << 20;
+    private static final int TRIGRAM_SPACE = 1 << 24;
+
+    private final Project project;
+    private final Logger log = Logger.getInstance(TrigramIndex.class);
+    private final ExecutorService executor;
+
+    private FileChannel file;
+    private boolean complete;
+    private RefCountMap docIds = new RefCountMap(); // object哈希 -> 文档编号+1
+    private final HashMap<Integer, Postings> postings = new HashMap<>();
+    private final BitSet binary = new BitSet();
+    private final BitSet oversized = new BitSet();
+    private int docCount = 0;
+    private int generation = 0; // 每次载入索引文件时加一，文档编号随之重新分配
+    private final BitSet scratch = new BitSet(TRIGRAM_SPACE); // 只在索引线程中使用
+
+    // 一个三元组出现在哪些文档中，文档编号递增分配，追加后仍然有序
+    private static class Postings {
+        int[] docs = new int[4];
+        int size = 0;
+
+        void add(int doc) {
+            if (size == docs.length) docs = Arrays.copyOf(docs, size * 2);
+            docs[size++] = doc;
+        }
+    }
+
+    public TrigramIndex(Project project) {
+        this.project = project;
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AutoSave Content Indexer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    private Path getAutosaveDir() {
+        return Path.of(project.getBasePath(), ".autosave");
+    }
+
+    private Path getIndexFile() {
+        return getAutosaveDir().resolve("TRIGRAMS.idx");
+    }
+
+    // 在后台为一次保存新写入的文件object建立索引
+    public void enqueue(Collection<String> fileHashes) {
+        if (fileHashes.isEmpty()) return;
+        ArrayList<String> hashes = new ArrayList<>(fileHashes);
+        executor.execute(() -> {
+            for (String hash : hashes) {
+                if (project.isDisposed()) return;
+                indexObject(hash);
+            }
+        });
+    }
+
+    // 索引还没有覆盖建立之前保存的版本时，在后台遍历所有版本补建
+    public void scheduleBackfill() {
+        executor.execute(() -> {
+            synchronized (this) {
+                if (!open() || complete) return;
+            }
+            AutoSaveData ASD = new AutoSaveData(project);
+            HashSet<String> visited = new HashSet<>();
+            ArrayList<String> pending = new ArrayList<>();
+            for (AutoSaveFunctional.VersionInfo version : project.getService(VersionLog.class).getVersions()) {
+                pending.add(version.rootObject);
+                while (!pending.isEmpty()) {
+                    if (project.isDisposed()) return;
+                    String dirHash = pending.remove(pending.size() - 1);
+                    if (!visited.add(dirHash)) continue;
+                    String content = ASD.getObjectContentByHash(dirHash);
+                    if (content == null) continue;
+                    for (String entry : content.substring(content.indexOf('\0') + 1).split("\n")) {
+                        String[] parts = entry.split("\0");
+                        if (parts.length != 3) continue;
+                        if (parts[1].equals("DIR")) pending.add(parts[0]);
+                        else if (visited.add(parts[0])) indexObject(parts[0]);
+                    }
+                }
+            }
+            synchronized (this) {
+                try {
+                    ByteBuffer flags = ByteBuffer.allocate(4).putInt(FLAG_COMPLETE);
+                    flags.flip();
+                    writeFully(file, flags, 8);
+                    complete = true;
+                    log.info("content index built for " + docCount + " file objects");
+                } catch (IOException e) {
+                    log.error(e);
+                }
+            }
+        });
+    }
+
+    // 垃圾回收之后，无法再被访问的记录超过一半时重写索引文件
+    public void prune(Predicate<byte[]> keep) {
+        executor.execute(() -> {
+            synchronized (this) {
+                if (!open()) return;
+                int[] stale = new int[1];
+                docIds.forEach((key, id) -> {
+                    if (!keep.test(key)) stale[0]++;
+                });
+                if (stale[0] * 2 <= docIds.size()) return;
+                try {
+                    rewrite(keep);
+                } catch (IOException e) {
+                    log.error(e);
+                }
+            }
+        });
+    }
+
+    // 一次搜索的候选object：literals是匹配结果中一定会出现的字面片段
+    public synchronized Candidates candidates(Collection<String> literals) {
+        BitSet docs = null;
+        if (open()) {
+            for (int trigram : queryTrigrams(literals)) {
+                Postings list = postings.get(trigram);
+                BitSet matched = new BitSet(docCount);
+                if (list != null) {
+                    for (int i = 0; i < list.size; i++) {
+                        int doc = list.docs[i];
+                        if (docs == null || docs.get(doc)) matched.set(doc);
+                    }
+                }
+                docs = matched;
+                if (docs.isEmpty()) break;
+            }
+        }
+        return new Candidates(docs, generation);
+    }
+
+    // 判断某个文件object是否可能匹配；docs为null表示查询没有可用的三元组
+    public class Candidates {
+        private final BitSet docs;
+        private final int generation;
+
+        private Candidates(BitSet docs, int generation) {
+            this.docs = docs;
+            this.generation = generation;
+        }
+
+        public boolean mayMatch(String hash) {
+            synchronized (TrigramIndex.this) {
+                if (file == null || generation != TrigramIndex.this.generation) return true; // 搜索期间索引被重写
+                int doc = docIds.get(PackStore.hexToBytes(hash)) - 1;
+                if (doc < 0) return true; // 还没有建立索引
+                if (binary.get(doc)) return false;
+                return oversized.get(doc) || docs == null || docs.get(doc);
+            }
+        }
+    }
+
+    // 正则表达式的匹配结果中一定会出现的字面片段；含有分支时无法确定，返回空列表（不做过滤）
+    // 分组、字符类和可选的字符都不计入，只保留确定出现的连续字面字符；拿不准的写法一律不产生片段，宁可多读也不能漏掉匹配
+    static ArrayList<String> requiredLiterals(String regex) {
+        ArrayList<String> literals = new ArrayList<>();
+        if (regex.indexOf('|') >= 0) return literals;
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length()) {
+                char next = regex.charAt(++i);
+                if (depth == 0 && next < 128 && !Character.isLetterOrDigit(next)) {
+                    run.append(next); // 转义的ASCII标点是字面字符
+                } else {
+                    // 其余转义表示字符类、特殊字符或按编码给出的字符（\x41、\u0041、\0101、\p{..}、\Q..\E等），跳过它的参数
+                    flush(run, literals);
+                    i = skipEscape(regex, i);
+                }
+            } else if (c == '(' && i + 1 < regex.length() && regex.charAt(i + 1) == '?' && isFlagGroup(regex, i + 2)) {
+                // (?i)、(?x)等内嵌标志改变之后字符的含义（忽略空白、大小写折叠），从这里开始不再提取
+                flush(run, literals);
+                return literals;
+            } else if (c == '*' || c == '?' || c == '{') {
+                // 前一个字符可以不出现
+                if (run.length() > 0) run.setLength(run.length() - 1);
+                flush(run, literals);
+                if (c == '{') while (i + 1 < regex.length() && regex.charAt(i) != '}') i++;
+            } else if (c == '[') {
+                flush(run, literals);
+                i++;
+                if (i < regex.length() && regex.charAt(i) == '^') i++;
+                if (i < regex.length() && regex.charAt(i) == ']') i++;
+                for (; i < regex.length() && regex.charAt(i) != ']'; i++)
+                    if (regex.charAt(i) == '\\') i++;
+            } else if (c == '(') {
+                flush(run, literals);
+                depth++;
+            } else if (c == ')') {
+                flush(run, literals);
+                depth = Math.max(0, depth - 1);
+            } else if (c == '.' || c == '^' || c == '$' || c == '+') {
+                // '+'之前的字符至少出现一次，但后面不一定紧接着下一个字符
+                flush(run, literals);
+            } else if (depth == 0) {
+                run.append(c);
+            }
+        }
+        flush(run, literals);
+        return literals;
+    }
+
+    // i指向反斜杠后的字符，返回这个转义最后一个字符的位置
+    private static int skipEscape(String regex, int i) {
+        char c = regex.charAt(i);
+        switch (c) {
+            case 'x':
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '{') return skipPast(regex, i + 1, "}");
+                return Math.min(i + 2, regex.length() - 1);
+            case 'u':
+                return Math.min(i + 4, regex.length() - 1);
+            case '0':
+                for (int n = 0; n < 3 && i + 1 < regex.length() && regex.charAt(i + 1) >= '0' && regex.charAt(i + 1) <= '7'; n++) i++;
+                return i;
+            case 'c':
+                return Math.min(i + 1, regex.length() - 1);
+            case 'p':
+            case 'P':
+            case 'N':
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '{') return skipPast(regex, i + 1, "}");
+                return Math.min(i + 1, regex.length() - 1);
+            case 'k':
+                return skipPast(regex, i, ">");
+            case 'Q':
+                return skipPast(regex, i, "\\E");
+            default:
+                // 反向引用的编号可能有多位
+                while (Character.isDigit(c) && i + 1 < regex.length() && Character.isDigit(regex.charAt(i + 1))) i++;
+                return i;
+        }
+    }
+
+    // 从from开始找到end，返回它最后一个字符的位置；找不到时到末尾
+    private static int skipPast(String regex, int from, String end) {
+        int found = regex.indexOf(end, from + 1);
+        return found < 0 ? regex.length() - 1 : found + end.length() - 1;
+    }
+
+    // "(?"之后不是非捕获组、命名组或环视，而是内嵌标志
+    private static boolean isFlagGroup(String regex, int i) {
+        if (i >= regex.length()) return false;
+        char c = regex.charAt(i);
+        return c != ':' && c != '=' && c != '!' && c != '>' && c != '<'; // <是命名组或向后环视
+    }
+
+    private static void flush(StringBuilder run, ArrayList<String> literals) {
+        if (run.length() >= 3) literals.add(run.toString());
+        run.setLength(0);
+    }
+
+    // 二进制文件（含有\0）不建立索引，也不参与搜索
+    static boolean isBinary(byte[] content) {
+        for (byte b : content) if (b == 0) return true;
+        return false;
+    }
+
+    // 查询片段中的三元组；含有非ASCII字节的三元组不使用，避免大小写折叠规则不同导致漏掉匹配
+    private static HashSet<Integer> queryTrigrams(Collection<String> literals) {
+        HashSet<Integer> trigrams = new HashSet<>();
+        for (String literal : literals) {
+            byte[] bytes = literal.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i + 2 < bytes.length; i++) {
+                if (bytes[i] < 0 || bytes[i + 1] < 0 || bytes[i + 2] < 0) continue;
+                trigrams.add(trigram(fold(bytes[i]), fold(bytes[i + 1]), fold(bytes[i + 2])));
+            }
+        }
+        return trigrams;
+    }
+
+    private static int fold(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff;
+    }
+
+    private static int trigram(int b0, int b1, int b2) {
+        return b0 << 16 | b1 << 8 | b2;
+    }
+
+    // 读取一个文件object的内容，提取三元组并追加到索引中；object已经被删除时跳过
+    private void indexObject(String hash) {
+        byte[] key = PackStore.hexToBytes(hash);
+        synchronized (this) {
+            if (!open() || docIds.get(key) > 0) return;
+        }
+
+        // 超过大小上限时停止读取，之后的内容是否含有\0留到搜索时判断
+        byte kind = RECORD_INDEXED;
+        long length = 0;
+        try (InputStream in = new AutoSaveData(project).openFileContent(hash)) {
+            byte[] buffer = new byte[64 << 10];
+            int b0 = -1, b1 = -1, read;
+            while (kind == RECORD_INDEXED && (read = in.read(buffer)) > 0) {
+                length += read;
+                if (length > MAX_INDEXED_BYTES) kind = RECORD_OVERSIZED;
+                for (int i = 0; i < read && kind != RECORD_BINARY; i++) {
+                    if (buffer[i] == 0) kind = RECORD_BINARY;
+                    int b2 = fold(buffer[i]);
+                    if (b0 >= 0) scratch.set(trigram(b0, b1, b2));
+                    b0 = b1;
+                    b1 = b2;
+                }
+            }
+        } catch (IOException e) {
+            scratch.clear();
+            return;
+        }
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(key, 0, key.length);
+        record.write(kind);
+        int[] trigrams = kind == RECORD_INDEXED ? new int[scratch.cardinality()] : new int[0];
+        if (kind == RECORD_INDEXED) {
+            writeVarInt(record, trigrams.length);
+            int previous = 0, n = 0;
+            for (int t = scratch.nextSetBit(0); t >= 0; t = scratch.nextSetBit(t + 1)) {
+                writeVarInt(record, t - previous);
+                trigrams[n++] = t;
+                previous = t;
+            }
+        } else {
+            writeVarInt(record, 0);
+        }
+        scratch.clear();
+
+        synchronized (this) {
+            if (!open() || docIds.get(key) > 0) return;
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(4 + record.size()).putInt(record.size()).put(record.toByteArray());
+                buffer.flip();
+                writeFully(file, buffer, file.size());
+            } catch (IOException e) {
+                log.error(e);
+                return;
+            }
+            addDocument(key, kind, trigrams);
+        }
+    }
+
+    private void addDocument(byte[] key, byte kind, int[] trigrams) {
+        int doc = docCount++;
+        docIds.add(key, doc + 1);
+        if (kind == RECORD_BINARY) binary.set(doc);
+        else if (kind == RECORD_OVERSIZED) oversized.set(doc);
+        for (int trigram : trigrams) postings.computeIfAbsent(trigram, k -> new Postings()).add(doc);
+    }
+
+    // 第一次使用时载入索引文件，截掉崩溃时写了一半的记录；文件不存在或格式不对时重新建立
+    private boolean open() {
+        if (file != null) return true;
+        if (!Files.isDirectory(getAutosaveDir())) return false;
+        try {
+            file = FileChannel.open(getIndexFile(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (!load()) {
+                file.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION).putInt(0);
+                header.flip();
+                writeFully(file, header, 0);
+                complete = false;
+            }
+            return true;
+        } catch (IOException e) {
+            log.error(e);
+            close();
+            return false;
+        }
+    }
+
+    private boolean load() throws IOException {
+        docIds = new RefCountMap();
+        generation++;
+        postings.clear();
+        binary.clear();
+        oversized.clear();
+        docCount = 0;
+
+        long size = file.size();
+        if (size < HEADER_SIZE) return false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.position(0)), 64 << 10));
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return false;
+        complete = (in.readInt() & FLAG_COMPLETE) != 0;
+
+        long offset = HEADER_SIZE;
+        byte[] key = new byte[PackStore.HASH_SIZE];
+        try {
+            while (offset + 4 <= size) {
+                int length = in.readInt();
+                if (length < key.length + 2 || offset + 4 + length > size) break;
+                in.readFully(key);
+                byte kind = in.readByte();
+                int[] trigrams = new int[readVarInt(in)];
+                for (int i = 0, previous = 0; i < trigrams.length; i++) {
+                    previous += readVarInt(in);
+                    trigrams[i] = previous;
+                }
+                if (docIds.get(key) == 0) addDocument(key.clone(), kind, trigrams);
+                offset += 4 + length;
+            }
+        } catch (EOFException e) {
+            // 按下面的偏移截断
+        }
+        if (offset < size) {
+            log.warn("truncated incomplete record at the end of content index");
+            file.truncate(offset);
+        }
+        return true;
+    }
+
+    // 只保留keep返回true的记录，写成新的索引文件后重新载入
+    private void rewrite(Predicate<byte[]> keep) throws IOException {
+        Path tmp = getIndexFile().resolveSibling("TRIGRAMS.idx.tmp");
+        long size = file.size();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION).putInt(complete ? FLAG_COMPLETE : 0);
+            header.flip();
+            writeFully(out, header, 0);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.position(HEADER_SIZE)), 64 << 10));
+            for (long offset = HEADER_SIZE; offset < size; ) {
+                int length = in.readInt();
+                byte[] record = new byte[length];
+                in.readFully(record);
+                offset += 4 + length;
+                if (!keep.test(Arrays.copyOf(record, PackStore.HASH_SIZE))) continue;
+                ByteBuffer buffer = ByteBuffer.allocate(4 + length).putInt(length).put(record);
+                buffer.flip();
+                writeFully(out, buffer, out.size());
+            }
+        }
+        close();
+        Files.move(tmp, getIndexFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (!open()) throw new IOException("Failed to reopen content index");
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+    }
+
+    private synchronized void close() {
+        if (file != null) try {
+            file.close();
+        } catch (IOException e) {
+            log.error(e);
+        }
+        file = null;
+    }
+
+    @Override
+    public void dispose() {
+        executor.shutdownNow();
+        close();
+    }
+}
@@ -0,0 +1,377 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// 追加写入的版本日志：VERSIONS.log由定长记录组成，按保存顺序排列，版本名保存在VERSIONS.tags中
+// 新版本只追加一条记录，重命名和删除只改写对应的一条记录，不需要重写或重新解析整个文件
+// 全部版本在内存中按根目录哈希和时间戳建立索引，界面和删除版本时的查找不再遍历列表
+public class VersionLog implements Disposable {
+    private static final int LOG_MAGIC = 0x4153564C; // "ASVL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 12; // magic | version | 记录长度
+    private static final int TIMESTAMP_SIZE = 19; // yyyy-MM-dd HH-mm-ss
+    private static final int RECORD_SIZE = 1 + TIMESTAMP_SIZE + PackStore.HASH_SIZE + 8 + 4; // 标志 | 时间戳 | 根目录哈希 | 版本名偏移 | 版本名长度
+    private static final byte FLAG_DELETED = 1;
+    private static final int COMPACT_THRESHOLD = 1024; // 已删除记录超过这个数量且多于有效记录时整理文件
+
+    private final Project project;
+    private final Logger log = Logger.getInstance(VersionLog.class);
+
+    private FileChannel records;
+    private FileChannel tags;
+    private final ArrayList<Entry> entries = new ArrayList<>(); // 有效版本，按保存顺序排列
+    private final HashMap<String, ArrayList<Entry>> byRoot = new HashMap<>(); // 同一个根目录可能对应多个版本
+    private final TreeMap<String, ArrayList<Entry>> byTimestamp = new TreeMap<>(); // 时间戳格式按字符串排序即为时间顺序
+    private int recordCount = 0; // 包括已删除的记录
+    private List<AutoSaveFunctional.VersionInfo> newestFirst; // 缓存的版本列表，修改后重新生成
+
+    private static class Entry {
+        final int slot; // 记录在文件中的序号
+        final AutoSaveFunctional.VersionInfo info;
+
+        Entry(int slot, AutoSaveFunctional.VersionInfo info) {
+            this.slot = slot;
+            this.info = info;
+        }
+    }
+
+    public VersionLog(Project project) {
+        this.project = project;
+    }
+
+    private Path getAutosaveDir() {
+        return Path.of(project.getBasePath(), ".autosave");
+    }
+
+    private Path getLogFile() {
+        return getAutosaveDir().resolve("VERSIONS.log");
+    }
+
+    private Path getTagFile() {
+        return getAutosaveDir().resolve("VERSIONS.tags");
+    }
+
+    // 所有版本，最新的在前；返回的列表不可修改
+    public synchronized List<AutoSaveFunctional.VersionInfo> getVersions() {
+        if (!open()) return Collections.emptyList();
+        if (newestFirst == null) {
+            ArrayList<AutoSaveFunctional.VersionInfo> list = new ArrayList<>(entries.size());
+            for (int i = entries.size() - 1; i >= 0; i--) list.add(entries.get(i).info);
+            newestFirst = Collections.unmodifiableList(list);
+        }
+        return newestFirst;
+    }
+
+    public synchronized AutoSaveFunctional.VersionInfo getLatest() {
+        if (!open() || entries.isEmpty()) return null;
+        return entries.get(entries.size() - 1).info;
+    }
+
+    // 根目录为rootHash的最新版本
+    public synchronized AutoSaveFunctional.VersionInfo findByRoot(String rootHash) {
+        Entry entry = open() ? last(byRoot.get(rootHash)) : null;
+        return entry == null ? null : entry.info;
+    }
+
+    public synchronized AutoSaveFunctional.VersionInfo findByTimestamp(String timestamp) {
+        Entry entry = open() ? last(byTimestamp.get(timestamp)) : null;
+        return entry == null ? null : entry.info;
+    }
+
+    // 时间戳晚于timestamp的所有版本，最新的在前
+    public synchronized List<AutoSaveFunctional.VersionInfo> getVersionsAfter(String timestamp) {
+        ArrayList<AutoSaveFunctional.VersionInfo> result = new ArrayList<>();
+        if (!open()) return result;
+        for (ArrayList<Entry> sameTime : byTimestamp.tailMap(timestamp, false).descendingMap().values())
+            for (int i = sameTime.size() - 1; i >= 0; i--) result.add(sameTime.get(i).info);
+        return result;
+    }
+
+    // 追加一个新版本
+    public synchronized Boolean append(String timestamp, String rootHash, String tag) {
+        if (!open()) return null;
+        try {
+            long[] tagRef = appendTag(tag);
+            int slot = recordCount;
+            writeRecord(slot, (byte) 0, timestamp, rootHash, tagRef);
+            recordCount++;
+            add(new Entry(slot, new AutoSaveFunctional.VersionInfo(timestamp, rootHash, tag)));
+            return true;
+        } catch (IOException e) {
+            log.error(e);
+            return false;
+        }
+    }
+
+    // 修改根目录为rootHash的最新版本的名字：新名字追加到VERSIONS.tags，再改写记录中的引用
+    public synchronized Boolean rename(String rootHash, String tag) {
+        Entry entry = open() ? last(byRoot.get(rootHash)) : null;
+        if (entry == null) return false;
+        try {
+            long[] tagRef = appendTag(tag);
+            writeRecord(entry.slot, (byte) 0, entry.info.timestamp, entry.info.rootObject, tagRef);
+            entry.info.tag = tag;
+            return true;
+        } catch (IOException e) {
+            log.error(e);
+            return false;
+        }
+    }
+
+    // 删除根目录为rootHash的最新版本：只在记录上打删除标志，删除的记录多了以后再整理文件
+    public synchronized Boolean remove(String rootHash) {
+        Entry entry = open() ? last(byRoot.get(rootHash)) : null;
+        if (entry == null) return false;
+        try {
+            ByteBuffer flag = ByteBuffer.wrap(new byte[]{FLAG_DELETED});
+            writeFully(records, flag, HEADER_SIZE + (long) entry.slot * RECORD_SIZE);
+            removeFromIndexes(entry);
+            int deleted = recordCount - entries.size();
+            if (deleted > COMPACT_THRESHOLD && deleted > entries.size()) compact();
+            return true;
+        } catch (IOException e) {
+            log.error(e);
+            return false;
+        }
+    }
+
+    // 一次删除多个版本，只为这些记录打删除标志，最后统一更新索引和整理文件；返回实际删除的版本
+    public synchronized ArrayList<AutoSaveFunctional.VersionInfo> removeAll(Collection<AutoSaveFunctional.VersionInfo> versions) {
+        ArrayList<AutoSaveFunctional.VersionInfo> removed = new ArrayList<>();
+        if (!open()) return removed;
+        Set<AutoSaveFunctional.VersionInfo> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+        targets.addAll(versions);
+        ArrayList<Entry> matched = new ArrayList<>();
+        try {
+            for (Entry entry : entries) {
+                if (!targets.contains(entry.info)) continue;
+                writeFully(records, ByteBuffer.wrap(new byte[]{FLAG_DELETED}), HEADER_SIZE + (long) entry.slot * RECORD_SIZE);
+                matched.add(entry);
+            }
+        } catch (IOException e) {
+            log.error(e); // 已经打上标志的记录照常从索引中去掉
+        }
+
+        Set<Entry> matchedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        matchedSet.addAll(matched);
+        entries.removeIf(matchedSet::contains);
+        for (Entry entry : matched) {
+            removeFrom(byRoot, entry.info.rootObject, entry);
+            removeFrom(byTimestamp, entry.info.timestamp, entry);
+            removed.add(entry.info);
+        }
+        newestFirst = null;
+        try {
+            int deleted = recordCount - entries.size();
+            if (deleted > COMPACT_THRESHOLD && deleted > entries.size()) compact();
+        } catch (IOException e) {
+            log.error(e);
+        }
+        return removed;
+    }
+
+    private static Entry last(ArrayList<Entry> list) {
+        return list == null || list.isEmpty() ? null : list.get(list.size() - 1);
+    }
+
+    private void add(Entry entry) {
+        entries.add(entry);
+        byRoot.computeIfAbsent(entry.info.rootObject, k -> new ArrayList<>()).add(entry);
+        byTimestamp.computeIfAbsent(entry.info.timestamp, k -> new ArrayList<>()).add(entry);
+        newestFirst = null;
+    }
+
+    private void removeFromIndexes(Entry entry) {
+        // 被删除的通常是较新的版本，从末尾开始找
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (entries.get(i) == entry) {
+                entries.remove(i);
+                break;
+            }
+        }
+        removeFrom(byRoot, entry.info.rootObject, entry);
+        removeFrom(byTimestamp, entry.info.timestamp, entry);
+        newestFirst = null;
+    }
+
+    private static void removeFrom(Map<String, ArrayList<Entry>> index, String key, Entry entry) {
+        ArrayList<Entry> list = index.get(key);
+        if (list == null) return;
+        list.remove(entry);
+        if (list.isEmpty()) index.remove(key);
+    }
+
+    private long[] appendTag(String tag) throws IOException {
+        byte[] bytes = tag.getBytes(StandardCharsets.UTF_8);
+        long offset = tags.size();
+        writeFully(tags, ByteBuffer.wrap(bytes), offset);
+        return new long[]{offset, bytes.length};
+    }
+
+    private void writeRecord(int slot, byte flags, String timestamp, String rootHash, long[] tagRef) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(flags);
+        record.put(Arrays.copyOf(timestamp.getBytes(StandardCharsets.US_ASCII), TIMESTAMP_SIZE));
+        record.put(PackStore.hexToBytes(rootHash));
+        record.putLong(tagRef[0]).putInt((int) tagRef[1]);
+        record.flip();
+        writeFully(records, record, HEADER_SIZE + (long) slot * RECORD_SIZE);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of version log");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // 第一次使用时打开日志并载入全部记录；还没有日志时导入旧版本的VERSIONS文本文件
+    private boolean open() {
+        if (records != null) return true;
+        if (!Files.isDirectory(getAutosaveDir())) return false;
+        try {
+            if (!Files.exists(getLogFile())) importLegacyVersions();
+            records = FileChannel.open(getLogFile(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            tags = FileChannel.open(getTagFile(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            load();
+            return true;
+        } catch (IOException e) {
+            log.error(e);
+            close();
+            return false;
+        }
+    }
+
+    private void load() throws IOException {
+        entries.clear();
+        byRoot.clear();
+        byTimestamp.clear();
+        newestFirst = null;
+
+        ByteBuffer header = readFully(records, 0, HEADER_SIZE);
+        if (header.getInt() != LOG_MAGIC || header.getInt() != FORMAT_VERSION || header.getInt() != RECORD_SIZE)
+            throw new IOException("Unsupported version log " + getLogFile());
+
+        long size = records.size();
+        recordCount = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+        if (HEADER_SIZE + (long) recordCount * RECORD_SIZE < size) {
+            log.warn("truncated incomplete record at the end of version log");
+            records.truncate(HEADER_SIZE + (long) recordCount * RECORD_SIZE);
+        }
+
+        ByteBuffer all = readFully(records, HEADER_SIZE, recordCount * RECORD_SIZE);
+        long tagSize = tags.size();
+        byte[] timestamp = new byte[TIMESTAMP_SIZE];
+        byte[] root = new byte[PackStore.HASH_SIZE];
+        for (int slot = 0; slot < recordCount; slot++) {
+            byte flags = all.get();
+            all.get(timestamp);
+            all.get(root);
+            long tagOffset = all.getLong();
+            int tagLength = all.getInt();
+            if ((flags & FLAG_DELETED) != 0) continue;
+
+            // 版本名写在记录之前，只有崩溃时才可能缺失
+            String tag = tagLength >= 0 && tagOffset + tagLength <= tagSize
+                    ? new String(readFully(tags, tagOffset, tagLength).array(), StandardCharsets.UTF_8) : "";
+            int timestampLength = 0;
+            while (timestampLength < TIMESTAMP_SIZE && timestamp[timestampLength] != 0) timestampLength++;
+            add(new Entry(slot, new AutoSaveFunctional.VersionInfo(
+                    new String(timestamp, 0, timestampLength, StandardCharsets.US_ASCII), PackStore.bytesToHex(root), tag)));
+        }
+    }
+
+    // 旧版本的VERSIONS文件每行为 时间戳\0根目录哈希\0版本名，最新的在前
+    private void importLegacyVersions() throws IOException {
+        Path legacy = getAutosaveDir().resolve("VERSIONS");
+        ArrayList<String[]> versions = new ArrayList<>();
+        if (Files.exists(legacy)) {
+            for (String line : Files.readString(legacy, StandardCharsets.UTF_8).split("\n")) {
+                String[] parts = line.split("\0");
+                if (parts.length == 3 && PackStore.isValidHash(parts[1].trim()))
+                    versions.add(0, new String[]{parts[0].trim(), parts[1].trim(), parts[2].trim()});
+            }
+        }
+        Path logTmp = getLogFile().resolveSibling("VERSIONS.log.tmp");
+        writeLog(logTmp, getTagFile(), versions);
+        Files.move(logTmp, getLogFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (Files.exists(legacy)) Files.delete(legacy);
+        if (!versions.isEmpty()) log.info("imported " + versions.size() + " versions into version log");
+    }
+
+    // 去掉已删除的记录和不再引用的版本名
+    private void compact() throws IOException {
+        ArrayList<String[]> versions = new ArrayList<>();
+        for (Entry entry : entries) versions.add(new String[]{entry.info.timestamp, entry.info.rootObject, entry.info.tag});
+        Path logTmp = getLogFile().resolveSibling("VERSIONS.log.tmp");
+        Path tagTmp = getTagFile().resolveSibling("VERSIONS.tags.tmp");
+        writeLog(logTmp, tagTmp, versions);
+        close();
+        // 先替换版本名文件：替换记录文件之前崩溃时，旧记录引用的版本名可能错位，但版本本身不会丢失
+        Files.move(tagTmp, getTagFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(logTmp, getLogFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (!open()) throw new IOException("Failed to reopen version log");
+    }
+
+    // 一次写出完整的日志，versions按保存顺序排列，每项为{时间戳, 根目录哈希, 版本名}
+    private static void writeLog(Path logFile, Path tagFile, List<String[]> versions) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + versions.size() * RECORD_SIZE);
+        buffer.putInt(LOG_MAGIC).putInt(FORMAT_VERSION).putInt(RECORD_SIZE);
+        ByteArrayOutputStream tagBytes = new ByteArrayOutputStream();
+        for (String[] version : versions) {
+            byte[] tag = version[2].getBytes(StandardCharsets.UTF_8);
+            buffer.put((byte) 0);
+            buffer.put(Arrays.copyOf(version[0].getBytes(StandardCharsets.US_ASCII), TIMESTAMP_SIZE));
+            buffer.put(PackStore.hexToBytes(version[1]));
+            buffer.putLong(tagBytes.size()).putInt(tag.length);
+            tagBytes.write(tag);
+        }
+        Files.write(tagFile, tagBytes.toByteArray());
+        Files.write(logFile, buffer.array());
+    }
+
+    private synchronized void close() {
+        for (FileChannel channel : new FileChannel[]{records, tags}) {
+            if (channel != null) try {
+                channel.close();
+            } catch (IOException e) {
+                log.error(e);
+            }
+        }
+        records = null;
+        tags = null;
+    }
+
+    @Override
+    public void dispose() {
+        close();
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+// 分级保留策略：最近一段时间内的自动版本全部保留，再往前每小时保留一个、每天保留一个，更早的自动版本删除
+// 每个小时或每天保留其中最新的版本；手动保存、重命名过的版本和最新的版本始终保留
+// 每次保存后在后台延迟执行，过期的版本在一次批量删除中清理
+public class VersionRetention implements Disposable {
+    static final String AUTO_TAG_PREFIX = "Auto Save"; // 自动保存的版本名都以此开头
+    private static final long PRUNE_DELAY_SECONDS = 30;
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH-mm-ss");
+
+    private final Project project;
+    private final Logger log = Logger.getInstance(VersionRetention.class);
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> pending;
+
+    public VersionRetention(Project project) {
+        this.project = project;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AutoSave Version Retention");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    // 保存之后调用；已经有等待中的清理时不重复安排，连续保存只清理一次
+    public synchronized void schedulePrune() {
+        if (!AutoSaveSettings.getInstance().getState().retentionEnabled) return;
+        if (pending != null && !pending.isDone()) return;
+        pending = executor.schedule(this::prune, PRUNE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // 按当前设置删除过期的版本，返回删除的数量
+    // 选出和删除在同一次互斥中完成，期间不会有保存插入
+    int prune() {
+        if (project.isDisposed()) return 0;
+        Lock mutation = project.getService(ObjectCollector.class).mutationLock();
+        mutation.lock();
+        try {
+            AutoSaveSettings.State state = AutoSaveSettings.getInstance().getState();
+            if (!state.retentionEnabled) return 0;
+            List<AutoSaveFunctional.VersionInfo> expired = selectExpired(project.getService(VersionLog.class).getVersions(),
+                    LocalDateTime.now(), state.keepAllMinutes, state.keepHourlyHours, state.keepDailyDays);
+            if (expired.isEmpty()) return 0;
+            int deleted = new AutoSaveFunctional(project).deleteVersions(expired);
+            log.info("Retention policy removed " + deleted + " versions");
+            return deleted;
+        } catch (RuntimeException e) {
+            log.error(e);
+            return 0;
+        } finally {
+            mutation.unlock();
+        }
+    }
+
+    // 按策略应删除的版本；versions最新的在前，各级时长为0表示不保留这一级
+    static List<AutoSaveFunctional.VersionInfo> selectExpired(List<AutoSaveFunctional.VersionInfo> versions, LocalDateTime now,
+                                                              int keepAllMinutes, int keepHourlyHours, int keepDailyDays) {
+        LocalDateTime allSince = now.minusMinutes(Math.max(keepAllMinutes, 0));
+        LocalDateTime hourlySince = allSince.minusHours(Math.max(keepHourlyHours, 0));
+        LocalDateTime dailySince = hourlySince.minusDays(Math.max(keepDailyDays, 0));
+        HashSet<LocalDateTime> keptHours = new HashSet<>();
+        HashSet<LocalDateTime> keptDays = new HashSet<>();
+
+        ArrayList<AutoSaveFunctional.VersionInfo> expired = new ArrayList<>();
+        for (int i = 1; i < versions.size(); i++) { // 最新的版本是下一次增量保存的基准，不删除
+            AutoSaveFunctional.VersionInfo version = versions.get(i);
+            if (!version.tag.startsWith(AUTO_TAG_PREFIX)) continue;
+            LocalDateTime time;
+            try {
+                time = LocalDateTime.parse(version.timestamp, FORMATTER);
+            } catch (DateTimeParseException e) {
+                continue;
+            }
+            // 从新到旧遍历，每个小时或每天第一次遇到的就是其中最新的版本
+            boolean keep;
+            if (!time.isBefore(allSince)) keep = true;
+            else if (!time.isBefore(hourlySince)) keep = keptHours.add(time.truncatedTo(ChronoUnit.HOURS));
+            else if (!time.isBefore(dailySince)) keep = keptDays.add(time.truncatedTo(ChronoUnit.DAYS));
+            else keep = false;
+            if (!keep) expired.add(version);
+        }
+        return expired;
+    }
+
+    @Override
+    public void dispose() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// 工作区索引：按相对路径记录上次保存时每个文件的大小、修改时间和object哈希
+// 大小和修改时间都没变的文件直接复用上次的哈希，不再读取和计算
+public class WorkingTreeIndex {
+    private static final int INDEX_MAGIC = 0x41535749; // "ASWI"
+    private static final int FORMAT_VERSION = 1;
+    private static final long RACY_STAMP = -1; // 保存时刚被修改过的文件，下次必须重新计算
+    private static final long RACY_WINDOW_MS = 2000;
+
+    private final Project project;
+    private final Logger log = Logger.getInstance(WorkingTreeIndex.class);
+    private volatile ConcurrentSkipListMap<String, Entry> entries; // 保存过程中会被多个线程并发读取
+
+    public WorkingTreeIndex(Project project) {
+        this.project = project;
+    }
+
+    public static class Entry {
+        final boolean isDir;
+        final long length; // 文件为字节数，目录为子项数
+        final long timestamp;
+        final String hash;
+
+        Entry(boolean isDir, long length, long timestamp, String hash) {
+            this.isDir = isDir;
+            this.length = length;
+            this.timestamp = timestamp;
+            this.hash = hash;
+        }
+
+        static Entry forFile(VirtualFile file, String hash, long snapshotTime) {
+            long timestamp = file.getTimeStamp();
+            // 修改时间的精度有限，刚写入的文件可能在同一时间戳内再次被修改
+            if (timestamp >= snapshotTime - RACY_WINDOW_MS) timestamp = RACY_STAMP;
+            return new Entry(false, file.getLength(), timestamp, hash);
+        }
+
+        static Entry forDirectory(int childCount, String hash) {
+            return new Entry(true, childCount, 0, hash);
+        }
+
+        // 文件自上次保存以来是否没有变化
+        boolean matches(VirtualFile file) {
+            return !isDir && timestamp != RACY_STAMP && length == file.getLength() && timestamp == file.getTimeStamp();
+        }
+    }
+
+    public Entry get(String path) {
+        return getEntries().get(path);
+    }
+
+    // 复制当前索引，供增量保存在其基础上修改
+    public ConcurrentSkipListMap<String, Entry> copyEntries() {
+        return new ConcurrentSkipListMap<>(getEntries());
+    }
+
+    // 用一次保存得到的条目替换索引并写入磁盘
+    public synchronized void replace(ConcurrentSkipListMap<String, Entry> newEntries) {
+        entries = newEntries;
+        save();
+    }
+
+    private Path getIndexFile() {
+        return Path.of(project.getBasePath(), ".autosave", "INDEX");
+    }
+
+    // 删除某个路径及其下所有路径的条目
+    static void removeSubtree(NavigableMap<String, Entry> entries, String path) {
+        entries.remove(path);
+        entries.subMap(path + '/', path + '0').clear(); // '0'紧跟在'/'之后
+    }
+
+    private ConcurrentSkipListMap<String, Entry> getEntries() {
+        ConcurrentSkipListMap<String, Entry> current = entries;
+        if (current != null) return current;
+        synchronized (this) {
+            if (entries == null) entries = load();
+            return entries;
+        }
+    }
+
+    private ConcurrentSkipListMap<String, Entry> load() {
+        ConcurrentSkipListMap<String, Entry> loaded = new ConcurrentSkipListMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(getIndexFile())))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != FORMAT_VERSION) {
+                log.warn("ignored working tree index of unknown format");
+                return loaded;
+            }
+            int count = in.readInt();
+            byte[] hash = new byte[PackStore.HASH_SIZE];
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                boolean isDir = in.readBoolean();
+                long length = in.readLong();
+                long timestamp = in.readLong();
+                in.readFully(hash);
+                loaded.put(path, new Entry(isDir, length, timestamp, PackStore.bytesToHex(hash)));
+            }
+        } catch (NoSuchFileException e) {
+            // 第一次保存，还没有索引
+        } catch (IOException e) {
+            log.warn("failed to load working tree index, all files will be rehashed", e);
+            loaded.clear();
+        }
+        return loaded;
+    }
+
+    private void save() {
+        Path tmp = getIndexFile().resolveSibling("INDEX.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(value.isDir);
+                out.writeLong(value.length);
+                out.writeLong(value.timestamp);
+                out.write(PackStore.hexToBytes(value.hash));
+            }
+        } catch (IOException e) {
+            log.error(e);
+            return;
+        }
+        try {
+            Files.move(tmp, getIndexFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error(e);
+        }
+    }
+}
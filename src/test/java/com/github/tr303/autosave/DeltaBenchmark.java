@@ -0,0 +1,109 @@
+package com.github.tr303.autosave;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.testFramework.HeavyPlatformTestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// 差分链长度对存储大小和读取延迟的影响
+// 对一个约300KB的源文件连续保存数百次，每次修改一行；每个版本用PackStore.appendDelta以上一个版本为基准写入，
+// 再用PackStore.read逐个读回，打印pack大小和读取耗时
+// 运行：./gradlew test --tests com.github.tr303.autosave.DeltaBenchmark
+public class DeltaBenchmark extends HeavyPlatformTestCase {
+    private static final int VERSIONS = 300;
+    private static final int READ_ROUNDS = 3;
+    private static final int[] CHAIN_DEPTHS = {0, 1, 2, 5, 10, 20, 50, AutoSaveSettings.MAX_DELTA_CHAIN_DEPTH};
+
+    public void testChainDepths() throws IOException {
+        ArrayList<byte[]> versions = generateVersions();
+        long rawSize = 0;
+        for (byte[] version : versions) rawSize += version.length;
+        System.out.printf("%d versions, %.1f KB each, %.1f MB uncompressed%n",
+                VERSIONS, versions.get(0).length / 1024.0, rawSize / 1048576.0);
+        System.out.printf("%10s %14s %10s %16s %16s%n", "max depth", "pack size KB", "ratio", "avg read us", "worst read us");
+
+        AutoSaveSettings.State state = AutoSaveSettings.getInstance().getState();
+        int savedDepth = state.maxDeltaChainDepth;
+        try {
+            for (int maxDepth : CHAIN_DEPTHS) {
+                state.maxDeltaChainDepth = maxDepth;
+                System.out.println(measure(getProject(), versions, maxDepth, rawSize));
+            }
+        } finally {
+            state.maxDeltaChainDepth = savedDepth;
+        }
+    }
+
+    // 在一个空的pack中写入全部版本，再多轮读回每个版本，返回一行结果
+    static String measure(Project project, ArrayList<byte[]> versions, int maxDepth, long rawSize) throws IOException {
+        Path autosaveDir = Path.of(project.getBasePath(), ".autosave");
+        deleteRecursively(autosaveDir);
+        PackStore packStore = new PackStore(project);
+        try {
+            AutoSaveData data = new AutoSaveData(project);
+            String[] hashes = new String[versions.size()];
+            for (int i = 0; i < versions.size(); i++) {
+                hashes[i] = data.sha256(versions.get(i));
+                if (i == 0) packStore.append(hashes[i], versions.get(i));
+                else packStore.appendDelta(hashes[i], versions.get(i), hashes[i - 1]);
+            }
+            packStore.flush();
+            long packSize = packStore.packSize();
+
+            // 先读一遍预热，同时检查内容
+            for (int i = 0; i < versions.size(); i++)
+                assertArrayEquals("version " + i + " at max depth " + maxDepth, versions.get(i), packStore.read(hashes[i]));
+            long total = 0, worst = 0;
+            for (int round = 0; round < READ_ROUNDS; round++) {
+                for (String hash : hashes) {
+                    long start = System.nanoTime();
+                    packStore.read(hash);
+                    long elapsed = System.nanoTime() - start;
+                    total += elapsed;
+                    worst = Math.max(worst, elapsed);
+                }
+            }
+            return String.format("%10d %14.1f %9.1f%% %16.1f %16.1f", maxDepth, packSize / 1024.0, packSize * 100.0 / rawSize,
+                    total / 1000.0 / (READ_ROUNDS * hashes.length), worst / 1000.0);
+        } finally {
+            packStore.dispose();
+            deleteRecursively(autosaveDir);
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+
+    // 一个约300KB的源文件，每个版本随机修改、插入或删除一行
+    static ArrayList<byte[]> generateVersions() {
+        Random random = new Random(42);
+        ArrayList<String> lines = new ArrayList<>();
+        for (int i = 0; lines.size() < 6000; i++) {
+            lines.add("    private int field" + i + " = " + random.nextInt(100000) + "; // generated line " + i);
+            if (i % 10 == 0) lines.add("");
+        }
+
+        ArrayList<byte[]> versions = new ArrayList<>();
+        for (int v = 0; v < VERSIONS; v++) {
+            versions.add((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+            int line = random.nextInt(lines.size());
+            switch (random.nextInt(3)) {
+                case 0 -> lines.set(line, lines.get(line) + " // edited in version " + v);
+                case 1 -> lines.add(line, "    // inserted in version " + v);
+                default -> lines.remove(line);
+            }
+        }
+        return versions;
+    }
+}
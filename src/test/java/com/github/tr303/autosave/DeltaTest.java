@@ -0,0 +1,92 @@
+package com.github.tr303.autosave;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaTest {
+    private static byte[] roundTrip(byte[] base, byte[] target) throws IOException {
+        byte[] delta = Delta.create(base, target);
+        byte[] restored = Delta.apply(base, delta);
+        assertArrayEquals(target, restored);
+        return delta;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void identicalContentIsOneCopy() throws IOException {
+        byte[] content = randomBytes(new Random(1), 64 << 10);
+        byte[] delta = roundTrip(content, content);
+        assertTrue("delta of identical content is " + delta.length + " bytes", delta.length < 32);
+    }
+
+    @Test
+    public void emptyBaseAndEmptyTarget() throws IOException {
+        byte[] content = "some content that is longer than the block size".getBytes(StandardCharsets.UTF_8);
+        roundTrip(new byte[0], content);
+        roundTrip(content, new byte[0]);
+        roundTrip(new byte[0], new byte[0]);
+    }
+
+    @Test
+    public void editsInTheMiddle() throws IOException {
+        Random random = new Random(2);
+        byte[] base = randomBytes(random, 100_000);
+        // 替换、插入和删除一段，插入的长度超过单个插入操作的上限
+        byte[] replaced = base.clone();
+        System.arraycopy(randomBytes(random, 500), 0, replaced, 40_000, 500);
+        byte[] inserted = concat(Arrays.copyOfRange(base, 0, 50_000), randomBytes(random, 1000), Arrays.copyOfRange(base, 50_000, base.length));
+        byte[] deleted = concat(Arrays.copyOfRange(base, 0, 10_000), Arrays.copyOfRange(base, 30_000, base.length));
+
+        for (byte[] target : new byte[][]{replaced, inserted, deleted}) {
+            byte[] delta = roundTrip(base, target);
+            assertTrue("delta is " + delta.length + " bytes", delta.length < 2_000);
+        }
+    }
+
+    @Test
+    public void unrelatedContent() throws IOException {
+        Random random = new Random(3);
+        roundTrip(randomBytes(random, 10_000), randomBytes(random, 12_345));
+        roundTrip(randomBytes(random, 10), randomBytes(random, 5));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDifferentBase() throws IOException {
+        Random random = new Random(4);
+        byte[] base = randomBytes(random, 4096);
+        byte[] delta = Delta.create(base, randomBytes(random, 4096));
+        Delta.apply(Arrays.copyOf(base, base.length - 1), delta);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedDelta() throws IOException {
+        Random random = new Random(5);
+        byte[] base = randomBytes(random, 4096);
+        byte[] target = concat(base, randomBytes(random, 300));
+        byte[] delta = Delta.create(base, target);
+        Delta.apply(base, Arrays.copyOf(delta, delta.length - 1));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.tr303.autosave;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RefCountMapTest {
+    // 最小容量1024，散列值是前4个字节，取低10位就是槽号
+    private static final int CAPACITY = 1024;
+
+    // 散列到home槽、用id区分的键
+    private static byte[] key(int home, int id) {
+        return ByteBuffer.allocate(PackStore.HASH_SIZE).putInt(home).putInt(id).array();
+    }
+
+    @Test
+    public void addAndRemove() {
+        RefCountMap map = new RefCountMap();
+        byte[] key = key(7, 1);
+        assertEquals(0, map.get(key));
+        assertEquals(0, map.add(key, -1));
+        assertEquals(0, map.size());
+        assertEquals(2, map.add(key, 2));
+        assertEquals(3, map.add(key, 1));
+        assertEquals(1, map.add(key, -2));
+        assertEquals(1, map.size());
+        assertEquals(0, map.add(key, -5));
+        assertEquals(0, map.get(key));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void removingFromACollisionChainKeepsTheRestReachable() {
+        RefCountMap map = new RefCountMap();
+        byte[] a = key(100, 1), b = key(100, 2), c = key(100, 3), d = key(101, 4);
+        map.add(a, 1);
+        map.add(b, 2);
+        map.add(c, 3);
+        map.add(d, 4); // 槽101被c占用，d放在槽103
+
+        map.add(a, -1); // b、c前移一格，d前移到槽102
+        assertEquals(0, map.get(a));
+        assertEquals(2, map.get(b));
+        assertEquals(3, map.get(c));
+        assertEquals(4, map.get(d));
+
+        map.add(c, -3);
+        assertEquals(2, map.get(b));
+        assertEquals(4, map.get(d));
+        assertEquals(2, map.size());
+
+        // 删除之后重新插入不会出现重复条目
+        map.add(a, 5);
+        map.add(d, 1);
+        assertEquals(5, map.get(a));
+        assertEquals(5, map.get(d));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void entryAtItsHomeIsNotMovedBackwards() {
+        RefCountMap map = new RefCountMap();
+        byte[] a = key(200, 1), b = key(200, 2), c = key(202, 3);
+        map.add(a, 1);
+        map.add(b, 1); // 槽201
+        map.add(c, 1); // 槽202，正好是它的home
+        map.add(a, -1);
+        assertEquals(1, map.get(b));
+        assertEquals(1, map.get(c));
+        map.add(b, -1);
+        assertEquals(1, map.get(c));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void chainWrappingAroundTheEnd() {
+        RefCountMap map = new RefCountMap();
+        byte[] a = key(CAPACITY - 2, 1), b = key(CAPACITY - 1, 2), c = key(CAPACITY - 2, 3), d = key(0, 4);
+        map.add(a, 1);
+        map.add(b, 2);
+        map.add(c, 3); // 绕到槽0
+        map.add(d, 4); // 槽0被占用，放在槽1
+        map.add(a, -1);
+        assertEquals(2, map.get(b));
+        assertEquals(3, map.get(c));
+        assertEquals(4, map.get(d));
+        map.add(b, -2);
+        assertEquals(3, map.get(c));
+        assertEquals(4, map.get(d));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void randomOperationsMatchHashMap() {
+        Random random = new Random(42);
+        RefCountMap map = new RefCountMap();
+        HashMap<Integer, Integer> expected = new HashMap<>();
+        // 键集中在少数几个home上，形成很长的探测链；总数超过容量的3/4，中途会扩容
+        for (int i = 0; i < 200_000; i++) {
+            int id = random.nextInt(2000);
+            int delta = random.nextInt(5) - 2;
+            byte[] key = key(id % 16 * 64, id);
+            int count = Math.max(0, expected.getOrDefault(id, 0) + delta);
+            if (count == 0) expected.remove(id);
+            else expected.put(id, count);
+            assertEquals(count, map.add(key, delta));
+        }
+        assertEquals(expected.size(), map.size());
+        for (int id = 0; id < 2000; id++)
+            assertEquals("key " + id, (long) expected.getOrDefault(id, 0), map.get(key(id % 16 * 64, id)));
+
+        int[] visited = {0};
+        map.forEach((key, count) -> {
+            assertEquals((long) expected.get(ByteBuffer.wrap(key).getInt(4)), count);
+            visited[0]++;
+        });
+        assertEquals(expected.size(), visited[0]);
+    }
+}
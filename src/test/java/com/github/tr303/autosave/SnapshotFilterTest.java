@@ -0,0 +1,110 @@
+package com.github.tr303.autosave;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SnapshotFilterTest {
+    private static SnapshotFilter.Rules rules(String... lines) {
+        return SnapshotFilter.Rules.EMPTY.with("", List.of(lines));
+    }
+
+    @Test
+    public void negationReincludesLaterMatches() {
+        SnapshotFilter.Rules rules = rules("*.log", "!keep.log");
+        assertTrue(rules.isIgnored("a.log", false));
+        assertTrue(rules.isIgnored("sub/b.log", false));
+        assertFalse(rules.isIgnored("keep.log", false));
+        assertFalse(rules.isIgnored("sub/keep.log", false));
+        assertFalse(rules.isIgnored("a.txt", false));
+    }
+
+    @Test
+    public void laterRuleWins() {
+        SnapshotFilter.Rules rules = rules("!important.tmp", "*.tmp");
+        assertTrue(rules.isIgnored("important.tmp", false));
+        rules = rules.with("", List.of("!important.tmp"));
+        assertFalse(rules.isIgnored("important.tmp", false));
+        assertTrue(rules.isIgnored("other.tmp", false));
+    }
+
+    @Test
+    public void leadingSlashAnchorsToTheDirectory() {
+        SnapshotFilter.Rules rules = rules("/build");
+        assertTrue(rules.isIgnored("build", true));
+        assertFalse(rules.isIgnored("sub/build", true));
+    }
+
+    @Test
+    public void nameWithoutSlashMatchesAtAnyDepth() {
+        SnapshotFilter.Rules rules = rules("build");
+        assertTrue(rules.isIgnored("build", true));
+        assertTrue(rules.isIgnored("a/b/build", false));
+        assertFalse(rules.isIgnored("builder", true));
+    }
+
+    @Test
+    public void middleSlashAnchorsToo() {
+        SnapshotFilter.Rules rules = rules("doc/*.txt");
+        assertTrue(rules.isIgnored("doc/a.txt", false));
+        assertFalse(rules.isIgnored("doc/sub/a.txt", false));
+        assertFalse(rules.isIgnored("src/doc/a.txt", false));
+    }
+
+    @Test
+    public void trailingSlashMatchesOnlyDirectories() {
+        SnapshotFilter.Rules rules = rules("out/");
+        assertTrue(rules.isIgnored("out", true));
+        assertTrue(rules.isIgnored("module/out", true));
+        assertFalse(rules.isIgnored("out", false));
+    }
+
+    @Test
+    public void doubleStar() {
+        SnapshotFilter.Rules rules = rules("a/**/z", "**/cache");
+        assertTrue(rules.isIgnored("a/z", false));
+        assertTrue(rules.isIgnored("a/b/c/z", false));
+        assertFalse(rules.isIgnored("b/a/z", false));
+        assertTrue(rules.isIgnored("cache", true));
+        assertTrue(rules.isIgnored("x/y/cache", true));
+    }
+
+    @Test
+    public void nestedGitignoreIsRelativeToItsDirectory() {
+        SnapshotFilter.Rules rules = rules("*.log").with("sub", List.of("/local", "*.tmp", "!debug.log"));
+        assertTrue(rules.isIgnored("sub/local", false));
+        assertFalse(rules.isIgnored("sub/deeper/local", false));
+        assertFalse(rules.isIgnored("local", false));
+        assertTrue(rules.isIgnored("sub/deeper/x.tmp", false));
+        assertFalse(rules.isIgnored("x.tmp", false));
+        assertFalse(rules.isIgnored("sub/debug.log", false));
+        assertTrue(rules.isIgnored("debug.log", false));
+        assertFalse(rules.isIgnored("subway/x.tmp", false));
+    }
+
+    @Test
+    public void commentsBlankLinesAndEscapes() {
+        SnapshotFilter.Rules rules = rules("# comment", "", "   ", "\\#hash", "\\!bang", "trailing   ");
+        assertFalse(rules.isIgnored("# comment", false));
+        assertTrue(rules.isIgnored("#hash", false));
+        assertTrue(rules.isIgnored("!bang", false));
+        assertTrue(rules.isIgnored("trailing", false));
+        assertSame(SnapshotFilter.Rules.EMPTY, SnapshotFilter.Rules.EMPTY.with("", List.of("# only a comment", "")));
+    }
+
+    @Test
+    public void wildcardsAndCharacterClasses() {
+        SnapshotFilter.Rules rules = rules("file?.java", "*.[oa]", "log[!0-9]");
+        assertTrue(rules.isIgnored("file1.java", false));
+        assertFalse(rules.isIgnored("file12.java", false));
+        assertFalse(rules.isIgnored("file/.java", false));
+        assertTrue(rules.isIgnored("x.o", false));
+        assertTrue(rules.isIgnored("lib/x.a", false));
+        assertFalse(rules.isIgnored("x.c", false));
+        assertTrue(rules.isIgnored("logx", false));
+        assertFalse(rules.isIgnored("log1", false));
+        assertFalse(rules.isIgnored("dir/name.java", false));
+    }
+}
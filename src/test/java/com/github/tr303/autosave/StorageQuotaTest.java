@@ -0,0 +1,53 @@
+package com.github.tr303.autosave;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StorageQuotaTest {
+    private static AutoSaveFunctional.VersionInfo version(String timestamp, String tag) {
+        return new AutoSaveFunctional.VersionInfo(timestamp, "root " + timestamp, tag);
+    }
+
+    private static AutoSaveFunctional.VersionInfo auto(String timestamp) {
+        return version(timestamp, VersionRetention.AUTO_TAG_PREFIX + " " + timestamp);
+    }
+
+    private static List<String> selected(List<AutoSaveFunctional.VersionInfo> versions) {
+        ArrayList<String> timestamps = new ArrayList<>();
+        for (AutoSaveFunctional.VersionInfo version : StorageQuota.selectUnnamed(versions)) timestamps.add(version.timestamp);
+        return timestamps;
+    }
+
+    @Test
+    public void oldestAutomaticVersionsComeFirst() {
+        List<AutoSaveFunctional.VersionInfo> versions = List.of(
+                auto("2026-01-10 12-00-00"),
+                auto("2026-01-10 11-00-00"),
+                version("2026-01-10 10-00-00", "User Quick Saved"),
+                auto("2026-01-10 09-00-00"),
+                version("2026-01-10 08-00-00", "before refactoring"),
+                auto("2026-01-10 07-00-00"));
+        assertEquals(List.of("2026-01-10 07-00-00", "2026-01-10 09-00-00", "2026-01-10 11-00-00"), selected(versions));
+    }
+
+    @Test
+    public void newestVersionIsNeverSelected() {
+        assertEquals(List.of(), selected(List.of()));
+        assertEquals(List.of(), selected(List.of(auto("2026-01-10 12-00-00"))));
+        assertEquals(List.of("2026-01-10 11-00-00"),
+                selected(List.of(auto("2026-01-10 12-00-00"), auto("2026-01-10 11-00-00"))));
+    }
+
+    @Test
+    public void nothingToSelectWhenOnlyNamedVersionsRemain() {
+        List<AutoSaveFunctional.VersionInfo> versions = List.of(
+                auto("2026-01-10 12-00-00"),
+                version("2026-01-10 11-00-00", "User Quick Saved"),
+                version("2026-01-10 10-00-00", "release"));
+        assertEquals(List.of(), selected(versions));
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.tr303.autosave;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VersionRetentionTest {
+    private static final LocalDateTime NOW = LocalDateTime.of(2026, 1, 10, 12, 0, 0);
+
+    private static AutoSaveFunctional.VersionInfo auto(String timestamp) {
+        return new AutoSaveFunctional.VersionInfo(timestamp, "root " + timestamp, VersionRetention.AUTO_TAG_PREFIX + " " + timestamp);
+    }
+
+    private static List<String> expired(List<AutoSaveFunctional.VersionInfo> versions, int keepAllMinutes, int keepHourlyHours, int keepDailyDays) {
+        ArrayList<String> timestamps = new ArrayList<>();
+        for (AutoSaveFunctional.VersionInfo version : VersionRetention.selectExpired(versions, NOW, keepAllMinutes, keepHourlyHours, keepDailyDays))
+            timestamps.add(version.timestamp);
+        return timestamps;
+    }
+
+    @Test
+    public void keepAllWindowIncludesItsStart() {
+        List<AutoSaveFunctional.VersionInfo> versions = List.of(
+                auto("2026-01-10 11-59-00"),
+                auto("2026-01-10 11-00-00"), // 正好60分钟前
+                auto("2026-01-10 10-59-59"), // 进入按小时保留，是这个小时最新的
+                auto("2026-01-10 10-30-00"));
+        assertEquals(List.of("2026-01-10 10-30-00"), expired(versions, 60, 24, 30));
+    }
+
+    @Test
+    public void hourlyAndDailyKeepTheNewestOfEachPeriod() {
+        List<AutoSaveFunctional.VersionInfo> versions = List.of(
+                auto("2026-01-10 11-30-00"),
+                auto("2026-01-10 09-50-00"),
+                auto("2026-01-10 09-10-00"),
+                auto("2026-01-09 11-00-00"), // 正好是按小时保留的起点
+                auto("2026-01-09 10-59-59"), // 进入按天保留，是1月9日在这一级中最新的
+                auto("2026-01-09 08-00-00"),
+                auto("2026-01-08 23-00-00"),
+                auto("2026-01-08 01-00-00"));
+        assertEquals(List.of("2026-01-10 09-10-00", "2026-01-09 08-00-00", "2026-01-08 01-00-00"),
+                expired(versions, 60, 24, 30));
+    }
+
+    @Test
+    public void versionsOlderThanTheDailyWindowExpire() {
+        // 按天保留的起点是 12:00 - 60分钟 - 24小时 - 2天 = 1月7日11:00
+        List<AutoSaveFunctional.VersionInfo> versions = List.of(
+                auto("2026-01-10 11-30-00"),
+                auto("2026-01-07 11-00-00"),
+                auto("2026-01-07 10-59-59"),
+                auto("2025-12-01 00-00-00"));
+        assertEquals(List.of("2026-01-07 10-59-59", "2025-12-01 00-00-00"), expired(versions, 60, 24, 2));
+    }
+
+    @Test
+    public void newestVersionIsNeverSelected() {
+        List<AutoSaveFunctional.VersionInfo> versions = List.of(
+                auto("2020-01-01 00-00-00"),
+                auto("2019-01-01 00-00-00"));
+        assertEquals(List.of("2019-01-01 00-00-00"), expired(versions, 0, 0, 0));
+        assertEquals(List.of(), expired(List.of(auto("2020-01-01 00-00-00")), 0, 0, 0));
+        assertEquals(List.of(), expired(List.of(), 0, 0, 0));
+    }
+
+    @Test
+    public void manualRenamedAndUnparsableVersionsAreKept() {
+        List<AutoSaveFunctional.VersionInfo> versions = List.of(
+                auto("2026-01-10 11-59-00"),
+                new AutoSaveFunctional.VersionInfo("2020-01-01 00-00-00", "manual", "User Quick Saved"),
+                new AutoSaveFunctional.VersionInfo("2020-01-01 00-00-00", "renamed", "before refactoring"),
+                new AutoSaveFunctional.VersionInfo("not a time", "broken", VersionRetention.AUTO_TAG_PREFIX),
+                auto("2020-01-01 00-00-00"));
+        assertEquals(List.of("2020-01-01 00-00-00"), expired(versions, 60, 24, 30));
+    }
+}